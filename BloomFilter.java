@@ -0,0 +1,177 @@
+package sitemap;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A scalable Bloom filter over 128-bit hashes. It starts with a filter sized
+ * for the expected number of entries and adds larger, stricter filters once
+ * that fills up, so the false positive rate stays near the target however
+ * many entries arrive. Safe for concurrent use.
+ */
+public class BloomFilter {
+    /** Each added filter holds this many times more entries than the last */
+    private static final int GROWTH = 2;
+
+    /** Each added filter has this fraction of the last one's error rate */
+    private static final double TIGHTENING = 0.5;
+
+    private CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<Segment>();
+
+    /** A plain Bloom filter of fixed capacity */
+    private static class Segment {
+        private AtomicLongArray bits;
+        private long size;
+        private int hashes;
+        private long capacity;
+        private AtomicLong count = new AtomicLong();
+
+        Segment(long capacity, double fpp) {
+            this.capacity = capacity;
+
+            // Optimal size and number of hash functions for the capacity
+            long bitCount = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bitCount + 63) / 64));
+            bits = new AtomicLongArray(words);
+            size = (long) words * 64;
+            hashes = Math.max(1, (int) Math.round((double) size / capacity * Math.log(2)));
+        }
+
+        boolean mightContain(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = index(h1, h2, i);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Set the bits, returns true if one of them wasn't set before */
+        boolean put(long h1, long h2) {
+            boolean changed = false;
+            for (int i = 0; i < hashes; i++) {
+                long bit = index(h1, h2, i);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+
+                long old;
+                do {
+                    old = bits.get(word);
+                    if ((old & mask) != 0) {
+                        break;
+                    }
+                } while (!bits.compareAndSet(word, old, old | mask));
+
+                changed |= (old & mask) == 0;
+            }
+
+            if (changed) {
+                count.incrementAndGet();
+            }
+            return changed;
+        }
+
+        /** Kirsch-Mitzenmacher double hashing */
+        private long index(long h1, long h2, int i) {
+            return ((h1 + i * h2) & Long.MAX_VALUE) % size;
+        }
+
+        boolean isFull() {
+            return count.get() >= capacity;
+        }
+
+        long bytes() {
+            return size / 8;
+        }
+    }
+
+    private double fpp;
+
+    /**
+     * @param expectedEntries
+     *            entries the first filter is sized for
+     * @param fpp
+     *            target false positive probability, like 0.01
+     */
+    public BloomFilter(long expectedEntries, double fpp) {
+        if (expectedEntries < 1 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("Bad Bloom filter size " + expectedEntries + " / " + fpp);
+        }
+
+        // The error rates of all segments add up to about fpp
+        this.fpp = fpp * (1 - TIGHTENING);
+        segments.add(new Segment(expectedEntries, this.fpp));
+    }
+
+    public boolean mightContain(long h1, long h2) {
+        for (Segment s : segments) {
+            if (s.mightContain(h1, h2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a hash. Returns true if it was definitely not in the filter before,
+     * false if it might have been.
+     */
+    public boolean put(long h1, long h2) {
+
+        // Older segments are full, only check them
+        Segment last = null;
+        for (Segment s : segments) {
+            if (last != null && last.mightContain(h1, h2)) {
+                return false;
+            }
+            last = s;
+        }
+
+        if (last.isFull()) {
+            if (last.mightContain(h1, h2)) {
+                return false;
+            }
+            last = grow(last);
+        }
+
+        return last.put(h1, h2);
+    }
+
+    private synchronized Segment grow(Segment full) {
+
+        Segment last = segments.get(segments.size() - 1);
+        if (last != full) {
+            // Another thread already grew the filter
+            return last;
+        }
+
+        double segmentFpp = fpp * Math.pow(TIGHTENING, segments.size());
+        last = new Segment(full.capacity * GROWTH, segmentFpp);
+        segments.add(last);
+        return last;
+    }
+
+    /** Approximate number of entries */
+    public long size() {
+        long size = 0;
+        for (Segment s : segments) {
+            size += s.count.get();
+        }
+        return size;
+    }
+
+    /** Memory used by the bit arrays */
+    public long bytes() {
+        long bytes = 0;
+        for (Segment s : segments) {
+            bytes += s.bytes();
+        }
+        return bytes;
+    }
+
+    public String toString() {
+        return "entries=" + size() + ",segments=" + segments.size() + ",bytes=" + bytes();
+    }
+}
@@ -0,0 +1,136 @@
+package sitemap;
+
+import static sitemap.TestSupport.check;
+
+/**
+ * Checks the false positive rate of the BloomFilter as it grows past its
+ * expected size, that the OffHeapHashSet is exact, and the UrlDeduplicator
+ * in both modes and once its exact set is full. Run with java sitemap.BloomFilterTest, it exits with an
+ * error on the first failed check.
+ */
+public class BloomFilterTest {
+
+    public static void main(String[] args) {
+        testNoFalseNegatives();
+        testFalsePositiveRate();
+        testOffHeapHashSet();
+        testDeduplicator();
+        testFullSet();
+        testHash128();
+        System.out.println("BloomFilterTest OK");
+    }
+
+    private static String url(int i) {
+        return "http://example.com/page/" + i + "?id=" + (i * 31);
+    }
+
+    private static void testNoFalseNegatives() {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        for (int i = 0; i < 20000; i++) {
+            long[] h = UrlDeduplicator.hash128(url(i));
+            filter.put(h[0], h[1]);
+        }
+        for (int i = 0; i < 20000; i++) {
+            long[] h = UrlDeduplicator.hash128(url(i));
+            check(filter.mightContain(h[0], h[1]), "filter contains " + url(i));
+        }
+    }
+
+    private static void testFalsePositiveRate() {
+
+        // Sized for a tenth of the entries, so several segments are added
+        int n = 200000;
+        BloomFilter filter = new BloomFilter(n / 10, 0.01);
+        for (int i = 0; i < n; i++) {
+            long[] h = UrlDeduplicator.hash128(url(i));
+            filter.put(h[0], h[1]);
+        }
+
+        int falsePositives = 0;
+        int probes = 200000;
+        for (int i = n; i < n + probes; i++) {
+            long[] h = UrlDeduplicator.hash128(url(i));
+            if (filter.mightContain(h[0], h[1])) {
+                falsePositives++;
+            }
+        }
+
+        double rate = (double) falsePositives / probes;
+        check(rate < 0.015, "false positive rate " + rate + " near 0.01");
+    }
+
+    private static void testOffHeapHashSet() {
+
+        // Starts small, so the stripes grow
+        OffHeapHashSet set = new OffHeapHashSet(16, 4);
+        for (int i = 0; i < 100000; i++) {
+            long[] h = UrlDeduplicator.hash128(url(i));
+            check(set.add(h[0], h[1]), "first add of " + url(i));
+        }
+        for (int i = 0; i < 100000; i++) {
+            long[] h = UrlDeduplicator.hash128(url(i));
+            check(!set.add(h[0], h[1]), "second add of " + url(i));
+            check(set.contains(h[0], h[1]), "set contains " + url(i));
+        }
+        check(!set.contains(1, 2), "set doesn't contain a hash never added");
+        check(set.size() == 100000, "set size " + set.size());
+
+        // The all-zero hash marks empty slots
+        check(set.add(0, 0), "zero hash can be added");
+        check(set.contains(0, 0), "set contains the zero hash");
+    }
+
+    private static void testDeduplicator() {
+        int n = 100000;
+
+        UrlDeduplicator exact = new UrlDeduplicator(1000, 0.01, true);
+        for (int i = 0; i < n; i++) {
+            check(exact.add(url(i)), "exact mode lets " + url(i) + " through");
+        }
+        for (int i = 0; i < n; i++) {
+            check(!exact.add(url(i)), "exact mode drops the second " + url(i));
+        }
+        check(exact.getDuplicates() == n, "exact mode counts " + n + " duplicates");
+
+        // The Bloom filter alone drops about its error rate of new URLs
+        UrlDeduplicator bloom = new UrlDeduplicator(1000, 0.01, false);
+        int dropped = 0;
+        for (int i = 0; i < n; i++) {
+            if (!bloom.add(url(i))) {
+                dropped++;
+            }
+        }
+        check(dropped < n * 0.015, "Bloom-only mode dropped " + dropped + " new URLs");
+    }
+
+    private static void testFullSet() {
+
+        // One stripe that stops growing at 1024 slots, 614 entries
+        OffHeapHashSet set = new OffHeapHashSet(16, 1, 1024);
+        UrlDeduplicator dedup = new UrlDeduplicator(1000, 0.01, set);
+        int n = 5000;
+        for (int i = 0; i < n; i++) {
+            check(dedup.add(url(i)) || dedup.isDegraded(), "exact until full, " + url(i));
+        }
+        check(set.isFull(), "set is full");
+        check(dedup.isDegraded(), "deduplicator fell back to the filter");
+        check(set.size() < 1024 * 0.9, "set stopped taking URLs at " + set.size());
+
+        // URLs before and after the switch are all dropped the second time
+        for (int i = 0; i < n; i++) {
+            check(!dedup.add(url(i)), "second " + url(i) + " dropped");
+        }
+    }
+
+    private static void testHash128() {
+        // Reference values of MurmurHash3 x64 128 over the UTF-16LE bytes
+        checkHash("", 0L, 0L);
+        checkHash("abcdefghi", 1929419699232638766L, -3554230148789217718L);
+        checkHash("http://example.com/x/y?z=1", -4954435706421966941L, -5185152253076450453L);
+    }
+
+    private static void checkHash(String s, long h1, long h2) {
+        long[] h = UrlDeduplicator.hash128(s);
+        check(h[0] == h1 && h[1] == h2, "MurmurHash3 of \"" + s + "\"");
+    }
+}
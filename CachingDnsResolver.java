@@ -0,0 +1,123 @@
+package sitemap;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+/**
+ * A DnsResolver that remembers addresses for a while, and host names that
+ * didn't resolve for a shorter while, so a crawl doesn't look up the same CDN
+ * host for every Sitemap. Safe for concurrent use.
+ */
+public class CachingDnsResolver implements DnsResolver {
+
+    /** How long addresses are kept in milliseconds */
+    private long ttl = 5 * 60 * 1000;
+
+    /** How long failed lookups are kept in milliseconds */
+    private long negativeTtl = 30 * 1000;
+
+    /** Flush the cache when it gets this big */
+    private static final int MAX_HOSTS = 10000;
+
+    private DnsResolver resolver;
+
+    private ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+    private static class Entry {
+        InetAddress[] addresses;
+        long expires;
+
+        Entry(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    public CachingDnsResolver(DnsResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    public CachingDnsResolver() {
+        this(SystemDefaultDnsResolver.INSTANCE);
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        if (ttl >= 0) {
+            this.ttl = ttl;
+        }
+    }
+
+    public long getNegativeTtl() {
+        return negativeTtl;
+    }
+
+    public void setNegativeTtl(long negativeTtl) {
+        if (negativeTtl >= 0) {
+            this.negativeTtl = negativeTtl;
+        }
+    }
+
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+
+        host = host.toLowerCase();
+        long now = System.currentTimeMillis();
+
+        Entry entry = cache.get(host);
+        if (entry == null || entry.expires <= now) {
+            entry = lookup(host, now);
+        }
+
+        if (entry.addresses == null) {
+            throw new UnknownHostException(host);
+        }
+
+        // Callers may reorder the array
+        return entry.addresses.clone();
+    }
+
+    /** Resolve a host now so a later resolve() finds it in the cache */
+    public void prefetch(String host) {
+
+        host = host.toLowerCase();
+        long now = System.currentTimeMillis();
+
+        Entry entry = cache.get(host);
+        if (entry == null || entry.expires <= now) {
+            lookup(host, now);
+        }
+    }
+
+    private Entry lookup(String host, long now) {
+
+        Entry entry;
+        try {
+            entry = new Entry(resolver.resolve(host), now + ttl);
+        } catch (UnknownHostException e) {
+            entry = new Entry(null, now + negativeTtl);
+        }
+
+        // Crude bound, a crawl rarely sees more hosts than this at a time
+        if (cache.size() >= MAX_HOSTS) {
+            cache.clear();
+        }
+        cache.put(host, entry);
+
+        return entry;
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+}
@@ -0,0 +1,61 @@
+package sitemap;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys like host names to nodes by consistent hashing. Each node is
+ * placed on the ring many times so the keys spread evenly, and adding or
+ * removing a node only moves the keys of that node. Lookups don't lock, the
+ * ring is replaced when the nodes change.
+ */
+public class ConsistentHashRing {
+    /** Points on the ring per node */
+    private int replicas;
+
+    private volatile TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    public ConsistentHashRing(int replicas) {
+        this.replicas = Math.max(1, replicas);
+    }
+
+    public ConsistentHashRing() {
+        this(160);
+    }
+
+    public synchronized void addNode(String node) {
+        TreeMap<Long, String> copy = new TreeMap<Long, String>(ring);
+        for (int i = 0; i < replicas; i++) {
+            copy.put(hash(node + "#" + i), node);
+        }
+        ring = copy;
+    }
+
+    public synchronized void removeNode(String node) {
+        TreeMap<Long, String> copy = new TreeMap<Long, String>(ring);
+        for (int i = 0; i < replicas; i++) {
+            copy.remove(hash(node + "#" + i));
+        }
+        ring = copy;
+    }
+
+    /** The node owning a key, null if there are no nodes */
+    public String getNode(String key) {
+
+        TreeMap<Long, String> r = ring;
+        if (r.isEmpty()) {
+            return null;
+        }
+
+        Map.Entry<Long, String> e = r.ceilingEntry(hash(key));
+        return (e != null) ? e.getValue() : r.firstEntry().getValue();
+    }
+
+    public int size() {
+        return ring.size() / replicas;
+    }
+
+    private static long hash(String s) {
+        return UrlDeduplicator.hash(s, 0x9E3779B97F4A7C15L);
+    }
+}
@@ -0,0 +1,155 @@
+package sitemap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+
+import sitemap.Sitemap;
+import sitemap.SitemapIndex;
+import sitemap.SitemapParser;
+
+/**
+ * The CrawlCheckpoint saves the frontier of a Sitemap Index crawl to a local
+ * file so an interrupted crawl can be resumed where it left off
+ */
+public class CrawlCheckpoint {
+    /** Identifies a checkpoint file ("SMCP") */
+    private static final int MAGIC = 0x534d4350;
+
+    /** Version of the binary layout */
+    private static final int VERSION = 1;
+
+    /** File the checkpoint is written to */
+    private File file;
+
+    /** Minimum time between two periodic saves in milliseconds */
+    private long interval = 10000;
+
+    /** When the checkpoint was last saved */
+    private long lastSaved = 0;
+
+    /** Number of Sitemaps written to the output when the checkpoint was taken */
+    private int sitemapsOutput = 0;
+
+    public CrawlCheckpoint(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public void setInterval(long interval) {
+        if (interval >= 0) {
+            this.interval = interval;
+        }
+    }
+
+    public int getSitemapsOutput() {
+        return sitemapsOutput;
+    }
+
+    public boolean exists() {
+        return file.isFile() && file.length() > 0;
+    }
+
+    /** Save the checkpoint if the interval has passed since the last save */
+    public void saveIfDue(SitemapIndex index, SitemapParser parser, int sitemapsOutput) throws IOException {
+        if (System.currentTimeMillis() - lastSaved >= interval) {
+            save(index, parser, sitemapsOutput);
+        }
+    }
+
+    /**
+     * Save the checkpoint. The file is written next to the target and moved
+     * over it afterwards, so a crash while saving leaves the previous
+     * checkpoint intact.
+     */
+    public void save(SitemapIndex index, SitemapParser parser, int sitemapsOutput) throws IOException {
+
+        File tmp = new File(file.getPath() + ".tmp");
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(index.getUrl().toString());
+            out.writeInt(parser.getDelayBetweenRequests());
+            out.writeInt(sitemapsOutput);
+
+            out.writeInt(index.getSitemapListSize());
+            for (Sitemap s : index.getSitemapList()) {
+                out.writeUTF(s.getUrl().toString());
+                out.writeLong(s.getLastModified() == null ? Long.MIN_VALUE : s.getLastModified().getTime());
+                out.writeBoolean(s.isProcessed());
+            }
+        } finally {
+            out.close();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.sitemapsOutput = sitemapsOutput;
+        lastSaved = System.currentTimeMillis();
+    }
+
+    /**
+     * Load the checkpoint, restore the parser's politeness settings and
+     * return the Sitemap Index with each Sitemap's processed flag set
+     */
+    public SitemapIndex load(SitemapParser parser) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + " in " + file);
+            }
+
+            SitemapIndex index = new SitemapIndex(new URL(in.readUTF()));
+            parser.setDelayBetweenRequests(in.readInt());
+            sitemapsOutput = in.readInt();
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                URL url = new URL(in.readUTF());
+                long lastModified = in.readLong();
+                boolean processed = in.readBoolean();
+
+                Sitemap s = new Sitemap(url, lastModified == Long.MIN_VALUE ? null : new Date(lastModified));
+                s.setProcessed(processed);
+                index.addSitemap(s);
+            }
+
+            lastSaved = System.currentTimeMillis();
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Remove the checkpoint once the crawl has completed */
+    public void delete() {
+        file.delete();
+    }
+
+    public String toString() {
+        return "file=\"" + file + "\",interval=" + interval + ",sitemapsOutput=" + sitemapsOutput;
+    }
+}
@@ -0,0 +1,110 @@
+package sitemap;
+
+import static sitemap.TestSupport.check;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks that a CrawlCheckpoint restores the Sitemap Index it saved, with
+ * each Sitemap's processed flag and the parser's delay, and that a broken
+ * file is rejected. Run with java sitemap.CrawlCheckpointTest, it exits with
+ * an error on the first failed check.
+ */
+public class CrawlCheckpointTest {
+
+    public static void main(String[] args) throws Exception {
+
+        File file = File.createTempFile("checkpoint", ".bin");
+        try {
+            testRoundTrip(file);
+            testSaveIfDue(file);
+            testBadFile(file);
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".tmp").delete();
+        }
+        System.out.println("CrawlCheckpointTest OK");
+    }
+
+    private static SitemapIndex newIndex(int sitemaps) throws Exception {
+        SitemapIndex index = new SitemapIndex(new URL("http://example.com/sitemap-index.xml"));
+        for (int i = 0; i < sitemaps; i++) {
+            Sitemap s = new Sitemap(new URL("http://example.com/sitemap-" + i + ".xml"), i % 2 == 0 ? new Date(1600000000000L + i) : null);
+            s.setProcessed(i % 3 == 0);
+            index.addSitemap(s);
+        }
+        return index;
+    }
+
+    private static void testRoundTrip(File file) throws Exception {
+
+        SitemapIndex index = newIndex(1000);
+        SitemapParser parser = new SitemapParser();
+        parser.setDelayBetweenRequests(1234);
+
+        CrawlCheckpoint checkpoint = new CrawlCheckpoint(file);
+        checkpoint.save(index, parser, 334);
+        check(checkpoint.exists(), "checkpoint saved");
+        check(!new File(file.getPath() + ".tmp").exists(), "temporary file moved over the checkpoint");
+
+        SitemapParser resumed = new SitemapParser();
+        CrawlCheckpoint loaded = new CrawlCheckpoint(file);
+        SitemapIndex restored = loaded.load(resumed);
+
+        check(restored.getUrl().equals(index.getUrl()), "index URL restored");
+        check(resumed.getDelayBetweenRequests() == 1234, "delay restored, got " + resumed.getDelayBetweenRequests());
+        check(loaded.getSitemapsOutput() == 334, "Sitemaps output restored, got " + loaded.getSitemapsOutput());
+        check(restored.getSitemapListSize() == 1000, "1000 Sitemaps restored, got " + restored.getSitemapListSize());
+
+        Map<String, Sitemap> saved = new HashMap<String, Sitemap>();
+        for (Sitemap s : index.getSitemapList()) {
+            saved.put(s.getUrl().toString(), s);
+        }
+        for (Sitemap s : restored.getSitemapList()) {
+            Sitemap original = saved.get(s.getUrl().toString());
+            check(original != null, "restored " + s.getUrl() + " was saved");
+            check(s.isProcessed() == original.isProcessed(), "processed flag of " + s.getUrl());
+            check(original.getLastModified() == null ? s.getLastModified() == null : original.getLastModified().equals(s.getLastModified()),
+                    "last modified of " + s.getUrl());
+        }
+    }
+
+    private static void testSaveIfDue(File file) throws Exception {
+
+        CrawlCheckpoint checkpoint = new CrawlCheckpoint(file);
+        checkpoint.setInterval(60000);
+        SitemapParser parser = new SitemapParser();
+
+        // Never saved yet, so the first one is due
+        checkpoint.saveIfDue(newIndex(10), parser, 1);
+        checkpoint.saveIfDue(newIndex(20), parser, 2);
+        check(new CrawlCheckpoint(file).load(parser).getSitemapListSize() == 10, "second save within the interval skipped");
+
+        checkpoint.setInterval(0);
+        checkpoint.saveIfDue(newIndex(20), parser, 2);
+        check(new CrawlCheckpoint(file).load(parser).getSitemapListSize() == 20, "save after the interval");
+
+        checkpoint.delete();
+        check(!checkpoint.exists(), "checkpoint deleted");
+    }
+
+    private static void testBadFile(File file) throws Exception {
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not a checkpoint".getBytes("UTF-8"));
+        out.close();
+
+        try {
+            new CrawlCheckpoint(file).load(new SitemapParser());
+            check(false, "bad file rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
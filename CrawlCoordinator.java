@@ -0,0 +1,165 @@
+package sitemap;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The CrawlCoordinator spreads a crawl over CrawlWorkers. Hosts are assigned
+ * to workers by consistent hashing, so each host is only crawled by one
+ * worker and its politeness limits hold. Sitemaps found in a Sitemap Index
+ * are routed to the worker of their host, and the URLs the workers find are
+ * passed to the Listener as they arrive.
+ */
+public class CrawlCoordinator implements CrawlTransport.Receiver {
+
+    /** Receives the results, called from the transport's thread */
+    public interface Listener {
+        void urlsReceived(String sitemapUrl, List<SitemapUrl> urls);
+
+        void sitemapDone(String sitemapUrl, int urls, String error);
+    }
+
+    private String node;
+
+    private CrawlTransport transport;
+
+    private Listener listener;
+
+    private ConsistentHashRing ring = new ConsistentHashRing();
+
+    /** Sitemaps submitted so far, so an index can't loop */
+    private Set<String> submitted = ConcurrentHashMap.newKeySet();
+
+    /** Sitemaps submitted but not done */
+    private int outstanding = 0;
+
+    /**
+     * @param node
+     *            name of the coordinator, the workers send their results
+     *            there
+     */
+    public CrawlCoordinator(String node, CrawlTransport transport, Listener listener) {
+        this.node = node;
+        this.transport = transport;
+        this.listener = listener;
+        transport.register(node, this);
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public void addWorker(String worker) {
+        ring.addNode(worker);
+    }
+
+    /** Only Sitemaps submitted after this avoid the worker */
+    public void removeWorker(String worker) {
+        ring.removeNode(worker);
+    }
+
+    /** The worker that owns the host of a Sitemap */
+    public String getWorker(String sitemapUrl) {
+        String host;
+        try {
+            host = new URL(sitemapUrl).getHost().toLowerCase();
+        } catch (MalformedURLException e) {
+            host = sitemapUrl;
+        }
+        return ring.getNode(host);
+    }
+
+    /**
+     * Send a Sitemap to the worker of its host. Returns false if it was
+     * submitted before.
+     */
+    public boolean submit(String sitemapUrl) throws IOException {
+
+        if (!submitted.add(sitemapUrl)) {
+            return false;
+        }
+
+        String worker = getWorker(sitemapUrl);
+        if (worker == null) {
+            throw new IOException("No workers for " + sitemapUrl);
+        }
+
+        synchronized (this) {
+            outstanding++;
+        }
+
+        try {
+            transport.send(worker, CrawlMessage.sitemap(node, sitemapUrl));
+        } catch (IOException e) {
+            finished();
+            throw e;
+        }
+        return true;
+    }
+
+    public void receive(CrawlMessage message) {
+
+        switch (message.getType()) {
+        case URLS:
+            listener.urlsReceived(message.getSitemapUrl(), message.getUrls());
+            break;
+
+        case INDEX:
+            // Workers send the index before they're done with it, so the
+            // crawl can't look finished in between
+            for (String sitemapUrl : message.getSitemaps()) {
+                try {
+                    submit(sitemapUrl);
+                } catch (IOException e) {
+                    listener.sitemapDone(sitemapUrl, 0, e.getMessage());
+                }
+            }
+            break;
+
+        case DONE:
+            listener.sitemapDone(message.getSitemapUrl(), message.getCount(), message.getError());
+            finished();
+            break;
+
+        default:
+            break;
+        }
+    }
+
+    private synchronized void finished() {
+        outstanding--;
+        if (outstanding == 0) {
+            notifyAll();
+        }
+    }
+
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * Wait until all submitted Sitemaps and the ones found in them are done.
+     * Returns false on timeout.
+     */
+    public synchronized boolean awaitCompletion(long timeout) throws InterruptedException {
+
+        // Long.MAX_VALUE waits forever without overflowing
+        long end = System.currentTimeMillis() + Math.min(timeout, Long.MAX_VALUE / 2);
+        while (outstanding > 0) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
+    public void close() {
+        transport.unregister(node);
+    }
+}
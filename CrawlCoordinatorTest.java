@@ -0,0 +1,193 @@
+package sitemap;
+
+import static sitemap.TestSupport.check;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that a CrawlCoordinator routes each host to one worker, finishes
+ * only once the Sitemaps found in an index are done too, doesn't loop on an
+ * index that lists itself, and that a crawl with real CrawlWorkers comes to
+ * an end. Run with java sitemap.CrawlCoordinatorTest, it exits with an error
+ * on the first failed check.
+ */
+public class CrawlCoordinatorTest {
+
+    public static void main(String[] args) throws Exception {
+        testTermination();
+        testTimeout();
+        testNoWorkers();
+        testWorkers();
+        System.out.println("CrawlCoordinatorTest OK");
+    }
+
+    /** Counts the results, and the Sitemaps done more than once */
+    private static class Counter implements CrawlCoordinator.Listener {
+        AtomicInteger urls = new AtomicInteger();
+        Map<String, Integer> done = new ConcurrentHashMap<String, Integer>();
+        AtomicInteger failed = new AtomicInteger();
+
+        public void urlsReceived(String sitemapUrl, List<SitemapUrl> urls) {
+            this.urls.addAndGet(urls.size());
+        }
+
+        public void sitemapDone(String sitemapUrl, int urls, String error) {
+            Integer times = done.get(sitemapUrl);
+            done.put(sitemapUrl, times == null ? 1 : times + 1);
+            if (error != null) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Answers like a worker without fetching anything: an index.xml lists
+     * itself and three Sitemaps on each of two hosts, after a pause, the
+     * other Sitemaps hold one URL
+     */
+    private static class FakeWorker implements CrawlTransport.Receiver {
+        String node;
+        CrawlTransport transport;
+        Map<String, String> hosts;
+
+        FakeWorker(String node, CrawlTransport transport, Map<String, String> hosts) {
+            this.node = node;
+            this.transport = transport;
+            this.hosts = hosts;
+        }
+
+        public void receive(CrawlMessage message) {
+            String url = message.getSitemapUrl();
+            String host = url.substring(0, url.indexOf('/', "http://".length()));
+
+            // Every Sitemap of a host must come to the same worker
+            String owner = hosts.putIfAbsent(host, node);
+            check(owner == null || owner.equals(node), host + " sent to " + owner + " and " + node);
+
+            try {
+                if (url.endsWith("/index.xml")) {
+                    Thread.sleep(100);
+                    List<String> sitemaps = new ArrayList<String>(Arrays.asList(url));
+                    for (int i = 0; i < 3; i++) {
+                        sitemaps.add("http://a.example.com/s" + i + ".xml");
+                        sitemaps.add("http://b.example.com/s" + i + ".xml");
+                    }
+                    transport.send("coordinator", CrawlMessage.index(node, url, sitemaps));
+                } else {
+                    List<SitemapUrl> urls = new ArrayList<SitemapUrl>();
+                    urls.add(TestSupport.newUrl(1, null));
+                    transport.send("coordinator", CrawlMessage.urls(node, url, urls));
+                }
+                transport.send("coordinator", CrawlMessage.done(node, url, 1, null));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static void testTermination() throws Exception {
+        InProcessTransport transport = new InProcessTransport();
+        Counter counter = new Counter();
+        CrawlCoordinator coordinator = new CrawlCoordinator("coordinator", transport, counter);
+
+        Map<String, String> hosts = new ConcurrentHashMap<String, String>();
+        for (int i = 1; i <= 3; i++) {
+            transport.register("worker-" + i, new FakeWorker("worker-" + i, transport, hosts));
+            coordinator.addWorker("worker-" + i);
+        }
+
+        check(coordinator.submit("http://index.example.com/index.xml"), "index submitted");
+        check(!coordinator.submit("http://index.example.com/index.xml"), "index submitted once");
+
+        check(coordinator.awaitCompletion(10000), "crawl completed");
+        check(coordinator.getOutstanding() == 0, "nothing outstanding");
+        check(counter.done.size() == 7, "index and six Sitemaps done, got " + counter.done.size());
+        for (Map.Entry<String, Integer> e : counter.done.entrySet()) {
+            check(e.getValue() == 1, e.getKey() + " done once");
+        }
+        check(counter.urls.get() == 6, "six URLs received, got " + counter.urls.get());
+        check(counter.failed.get() == 0, "no failures");
+
+        coordinator.close();
+        transport.close();
+    }
+
+    private static void testTimeout() throws Exception {
+        InProcessTransport transport = new InProcessTransport();
+        CrawlCoordinator coordinator = new CrawlCoordinator("coordinator", transport, new Counter());
+
+        // A worker that never answers
+        transport.register("worker-1", new CrawlTransport.Receiver() {
+            public void receive(CrawlMessage message) {
+
+            }
+        });
+        coordinator.addWorker("worker-1");
+
+        coordinator.submit("http://a.example.com/s.xml");
+        check(!coordinator.awaitCompletion(200), "no completion without an answer");
+        check(coordinator.getOutstanding() == 1, "Sitemap still outstanding");
+
+        coordinator.close();
+        transport.close();
+    }
+
+    private static void testNoWorkers() throws Exception {
+        InProcessTransport transport = new InProcessTransport();
+        CrawlCoordinator coordinator = new CrawlCoordinator("coordinator", transport, new Counter());
+
+        try {
+            coordinator.submit("http://a.example.com/s.xml");
+            check(false, "submit without workers fails");
+        } catch (IOException e) {
+            // Expected
+        }
+        check(coordinator.getOutstanding() == 0, "failed submit isn't outstanding");
+        check(coordinator.awaitCompletion(0), "nothing to wait for");
+
+        coordinator.close();
+        transport.close();
+    }
+
+    /** Real workers against the mock server, without delays */
+    private static void testWorkers() throws Exception {
+        MockSitemapServer server = new MockSitemapServer(0);
+        server.setUrlsPerSitemap(20);
+        server.setSitemapsPerIndex(3);
+        server.start();
+
+        InProcessTransport transport = new InProcessTransport();
+        Counter counter = new Counter();
+        CrawlCoordinator coordinator = new CrawlCoordinator("coordinator", transport, counter);
+
+        List<CrawlWorker> workers = new ArrayList<CrawlWorker>();
+        for (int i = 1; i <= 2; i++) {
+            CrawlWorker worker = new CrawlWorker("worker-" + i, coordinator.getNode(), transport);
+            worker.setDelayBetweenRequests(0);
+            worker.start();
+            coordinator.addWorker(worker.getNode());
+            workers.add(worker);
+        }
+
+        try {
+            coordinator.submit(server.getIndexUrl(0));
+            check(coordinator.awaitCompletion(60000), "crawl with workers completed");
+            check(counter.done.size() == 4, "index and three Sitemaps done, got " + counter.done.size());
+            check(counter.failed.get() == 0, "no failures");
+            check(counter.urls.get() == 60, "60 URLs received, got " + counter.urls.get());
+        } finally {
+            for (CrawlWorker worker : workers) {
+                worker.stop();
+            }
+            coordinator.close();
+            transport.close();
+            server.stop();
+        }
+    }
+}
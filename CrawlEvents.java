@@ -0,0 +1,144 @@
+package sitemap;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events of a crawl, to see where the time of a slow
+ * Sitemap went. Record them with -XX:StartFlightRecording and open the
+ * recording in JDK Mission Control. While no recording is running, creating
+ * an event costs next to nothing and shouldCommit() is false, so the fields
+ * are only filled in when the event is recorded.
+ */
+public class CrawlEvents {
+
+    private CrawlEvents() {
+
+    }
+
+    @Name("sitemap.Fetch")
+    @Label("Sitemap Fetch")
+    @Category({ "Sitemap Crawler" })
+    @Description("HTTP request and download of a Sitemap, retries included")
+    @StackTrace(false)
+    public static class Fetch extends Event {
+        @Label("URL")
+        public String url;
+
+        @Label("Status Code")
+        @Description("-1 if no response was received")
+        public int statusCode = -1;
+
+        @Label("Content Type")
+        public String contentType;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("sitemap.Decompress")
+    @Label("Sitemap Decompress")
+    @Category({ "Sitemap Crawler" })
+    @Description("Gunzip of a Sitemap before scanning, the XML parser path decompresses while parsing instead")
+    @StackTrace(false)
+    public static class Decompress extends Event {
+        @Label("URL")
+        public String url;
+
+        @Label("Compressed Bytes")
+        @DataAmount
+        public long compressedBytes;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("sitemap.Parse")
+    @Label("Sitemap Parse")
+    @Category({ "Sitemap Crawler" })
+    @Description("Parsing of a fetched or local Sitemap")
+    @StackTrace(false)
+    public static class Parse extends Event {
+        @Label("URL")
+        public String url;
+
+        @Label("Type")
+        public String type;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+
+        @Label("URLs")
+        @Description("URLs added, or Sitemaps listed by a Sitemap Index")
+        public int urls;
+    }
+
+    @Name("sitemap.IndexTraversal")
+    @Label("Sitemap Index Traversal")
+    @Category({ "Sitemap Crawler" })
+    @Description("Main's walk through the Sitemaps of a Sitemap Index, from the index to the last Sitemap")
+    @StackTrace(false)
+    public static class IndexTraversal extends Event {
+        @Label("URL")
+        public String url;
+
+        @Label("Sitemaps")
+        @Description("Sitemaps listed by the index")
+        public int sitemaps;
+
+        @Label("Sitemaps Output")
+        public int sitemapsOutput;
+
+        @Label("Sitemaps Failed")
+        public int sitemapsFailed;
+
+        @Label("URLs")
+        @Description("URLs output for the Sitemaps of the index")
+        public long urls;
+    }
+
+    @Name("sitemap.HostWait")
+    @Label("Host Wait")
+    @Category({ "Sitemap Crawler" })
+    @Description("Time a request waited for the HostController to let it through")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    public static class HostWait extends Event {
+        @Label("Host")
+        public String host;
+
+        @Label("Circuit Open")
+        @Description("The wait ended with the host's circuit breaker open")
+        public boolean circuitOpen;
+    }
+
+    @Name("sitemap.SinkWrite")
+    @Label("Sink Write")
+    @Category({ "Sitemap Crawler" })
+    @Description("Output of the URLs of a Sitemap")
+    @StackTrace(false)
+    public static class SinkWrite extends Event {
+        @Label("Sink")
+        public String sink;
+
+        @Label("Target")
+        @Description("The Sitemap output or the file written")
+        public String target;
+
+        @Label("URLs")
+        public long urls;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+}
@@ -0,0 +1,100 @@
+package sitemap;
+
+import java.util.Collections;
+import java.util.List;
+
+/** A message between the CrawlCoordinator and its CrawlWorkers */
+public class CrawlMessage {
+
+    public enum Type {
+        /** Coordinator to worker: process a Sitemap */
+        SITEMAP,
+        /** Worker to coordinator: a batch of URLs of a Sitemap */
+        URLS,
+        /** Worker to coordinator: the Sitemap was an index of these Sitemaps */
+        INDEX,
+        /** Worker to coordinator: the Sitemap is done, maybe with an error */
+        DONE
+    };
+
+    private Type type;
+
+    /** Node that sent the message */
+    private String sender;
+
+    /** The Sitemap the message is about */
+    private String sitemapUrl;
+
+    /** URLs for URLS */
+    private List<SitemapUrl> urls;
+
+    /** Sitemap URLs for INDEX */
+    private List<String> sitemaps;
+
+    /** Number of URLs for DONE */
+    private int count;
+
+    /** Error for DONE, null if the Sitemap was processed */
+    private String error;
+
+    private CrawlMessage(Type type, String sender, String sitemapUrl) {
+        this.type = type;
+        this.sender = sender;
+        this.sitemapUrl = sitemapUrl;
+    }
+
+    public static CrawlMessage sitemap(String sender, String sitemapUrl) {
+        return new CrawlMessage(Type.SITEMAP, sender, sitemapUrl);
+    }
+
+    public static CrawlMessage urls(String sender, String sitemapUrl, List<SitemapUrl> urls) {
+        CrawlMessage m = new CrawlMessage(Type.URLS, sender, sitemapUrl);
+        m.urls = urls;
+        return m;
+    }
+
+    public static CrawlMessage index(String sender, String sitemapUrl, List<String> sitemaps) {
+        CrawlMessage m = new CrawlMessage(Type.INDEX, sender, sitemapUrl);
+        m.sitemaps = sitemaps;
+        return m;
+    }
+
+    public static CrawlMessage done(String sender, String sitemapUrl, int count, String error) {
+        CrawlMessage m = new CrawlMessage(Type.DONE, sender, sitemapUrl);
+        m.count = count;
+        m.error = error;
+        return m;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getSitemapUrl() {
+        return sitemapUrl;
+    }
+
+    public List<SitemapUrl> getUrls() {
+        return (urls == null) ? Collections.<SitemapUrl> emptyList() : urls;
+    }
+
+    public List<String> getSitemaps() {
+        return (sitemaps == null) ? Collections.<String> emptyList() : sitemaps;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String toString() {
+        return "type=" + type + ",sender=" + sender + ",sitemapUrl=\"" + sitemapUrl + "\"";
+    }
+}
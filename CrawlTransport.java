@@ -0,0 +1,25 @@
+package sitemap;
+
+import java.io.IOException;
+
+/**
+ * Carries CrawlMessages between the nodes of a distributed crawl. Messages
+ * from one node to another must arrive in the order they were sent.
+ */
+public interface CrawlTransport {
+
+    /** Receives the messages of a node */
+    public interface Receiver {
+        void receive(CrawlMessage message);
+    }
+
+    /** Deliver the messages addressed to node to the receiver */
+    void register(String node, Receiver receiver);
+
+    void unregister(String node);
+
+    void send(String node, CrawlMessage message) throws IOException;
+
+    /** Stop delivering messages */
+    void close();
+}
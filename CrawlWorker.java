@@ -0,0 +1,233 @@
+package sitemap;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import sitemap.Sitemap.SitemapType;
+
+/**
+ * A CrawlWorker processes the Sitemaps the CrawlCoordinator routes to it and
+ * streams the URLs back. The coordinator sends all Sitemaps of a host to the
+ * same worker, so the worker's HostController paces each host on its own.
+ * Like the sequential crawler, the worker fetches one Sitemap of a host at a
+ * time with the parser's delay before each request, its threads work on
+ * different hosts.
+ */
+public class CrawlWorker implements CrawlTransport.Receiver {
+
+    /** URLs per message sent back */
+    private static final int BATCH_SIZE = 1000;
+
+    private String node;
+
+    private String coordinator;
+
+    private CrawlTransport transport;
+
+    /** Turn on verbose output of the parsers */
+    public boolean VERBOSE = false;
+
+    /** Turn on debug output of the parsers */
+    public boolean DEBUG = false;
+
+    /** Number of hosts processed at the same time */
+    private int threads = 4;
+
+    /** Delay before each HTTP request in milliseconds */
+    private int delayBetweenRequests = 5000;
+
+    private HostController hostController = new HostController();
+
+    private EnumSet<SitemapUrl.Field> fields = EnumSet.allOf(SitemapUrl.Field.class);
+
+    private ExecutorService pool;
+
+    /**
+     * Sitemaps waiting for their host, a host is in the map while a thread
+     * works on one of its Sitemaps
+     */
+    private Map<String, ArrayDeque<String>> hostQueues = new HashMap<String, ArrayDeque<String>>();
+
+    /**
+     * @param node
+     *            name of this worker
+     * @param coordinator
+     *            name of the coordinator the results go to
+     */
+    public CrawlWorker(String node, String coordinator, CrawlTransport transport) {
+        this.node = node;
+        this.coordinator = coordinator;
+        this.transport = transport;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads > 0) {
+            this.threads = threads;
+        }
+    }
+
+    public int getDelayBetweenRequests() {
+        return delayBetweenRequests;
+    }
+
+    public void setDelayBetweenRequests(int delayBetweenRequests) {
+        if (delayBetweenRequests >= 0) {
+            this.delayBetweenRequests = delayBetweenRequests;
+        }
+    }
+
+    public HostController getHostController() {
+        return hostController;
+    }
+
+    public void setHostController(HostController hostController) {
+        this.hostController = hostController;
+    }
+
+    public EnumSet<SitemapUrl.Field> getFields() {
+        return EnumSet.copyOf(fields);
+    }
+
+    public void setFields(EnumSet<SitemapUrl.Field> fields) {
+        this.fields = EnumSet.copyOf(fields);
+    }
+
+    /** Start taking Sitemaps */
+    public void start() {
+        pool = Executors.newFixedThreadPool(threads);
+        transport.register(node, this);
+    }
+
+    /** Stop taking Sitemaps and finish the ones already taken */
+    public void stop() throws InterruptedException {
+        transport.unregister(node);
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    public void receive(final CrawlMessage message) {
+
+        if (message.getType() != CrawlMessage.Type.SITEMAP) {
+            return;
+        }
+
+        final String sitemapUrl = message.getSitemapUrl();
+        final String host = getHost(sitemapUrl);
+
+        // Queue behind the Sitemap of the host being processed
+        synchronized (hostQueues) {
+            ArrayDeque<String> queue = hostQueues.get(host);
+            if (queue != null) {
+                queue.add(sitemapUrl);
+                return;
+            }
+            hostQueues.put(host, new ArrayDeque<String>());
+        }
+
+        pool.execute(new Runnable() {
+            public void run() {
+                processHost(host, sitemapUrl);
+            }
+        });
+    }
+
+    /** Process the Sitemap and then the ones queued for its host */
+    private void processHost(String host, String sitemapUrl) {
+        while (sitemapUrl != null) {
+            processSitemap(sitemapUrl);
+
+            synchronized (hostQueues) {
+                sitemapUrl = hostQueues.get(host).poll();
+                if (sitemapUrl == null) {
+                    hostQueues.remove(host);
+                }
+            }
+        }
+    }
+
+    private static String getHost(String sitemapUrl) {
+        try {
+            return new URL(sitemapUrl).getHost();
+        } catch (MalformedURLException e) {
+            // Fails again when it's processed, on its own
+            return sitemapUrl;
+        }
+    }
+
+    private void processSitemap(String sitemapUrl) {
+
+        // Parsers keep the state of the Sitemap they work on, so each
+        // Sitemap gets its own
+        SitemapParser parser = new SitemapParser();
+        parser.VERBOSE = VERBOSE;
+        parser.DEBUG = DEBUG;
+        parser.setDelayBetweenRequests(delayBetweenRequests);
+        parser.setHostController(hostController);
+        parser.setFields(fields);
+
+        int count = 0;
+        String error = null;
+        try {
+            SitemapType type = parser.processSitemap(new URL(sitemapUrl));
+
+            if (type == SitemapType.INDEX) {
+                // The coordinator routes the Sitemaps to their hosts' workers
+                List<String> sitemaps = new ArrayList<String>();
+                for (Sitemap s : parser.sitemapIndex.getSitemapList()) {
+                    sitemaps.add(s.getUrl().toString());
+                }
+                send(CrawlMessage.index(node, sitemapUrl, sitemaps));
+            } else {
+                Sitemap sitemap = parser.getSitemap();
+                List<SitemapUrl> batch = new ArrayList<SitemapUrl>(BATCH_SIZE);
+                for (SitemapUrl sUrl : sitemap.getUrlList()) {
+                    batch.add(sUrl);
+                    count++;
+                    if (batch.size() == BATCH_SIZE) {
+                        send(CrawlMessage.urls(node, sitemapUrl, batch));
+                        batch = new ArrayList<SitemapUrl>(BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    send(CrawlMessage.urls(node, sitemapUrl, batch));
+                }
+                sitemap.clearUrlList();
+            }
+        } catch (UnknownFormatException e) {
+            error = e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "Interrupted";
+        } catch (Exception e) {
+            error = e.toString();
+        }
+
+        send(CrawlMessage.done(node, sitemapUrl, count, error));
+    }
+
+    private void send(CrawlMessage message) {
+        try {
+            transport.send(coordinator, message);
+        } catch (IOException e) {
+            System.out.println("Worker " + node + " failed to send " + message + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package sitemap;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.client.utils.DateUtils;
+
+import sitemap.ProtocolException;
+
+/**
+ * The HostController decides how hard we may fetch from each host. It tracks
+ * latency and errors per host, adapts the number of concurrent requests
+ * (additive increase, multiplicative decrease), schedules retries with
+ * exponential backoff or the server's Retry-After, and stops sending
+ * requests to hosts that keep failing.
+ */
+public class HostController {
+    /** Concurrent requests a host starts with */
+    private int initialConcurrency = 2;
+
+    /** Concurrent requests a host can grow to */
+    private int maxConcurrency = 8;
+
+    /** Retries of a failed request before giving up */
+    private int maxRetries = 3;
+
+    /** First backoff in milliseconds, doubled with each retry */
+    private long baseBackoff = 1000;
+
+    /** Longest we wait before a retry, including Retry-After */
+    private long maxBackoff = 60000;
+
+    /** Responses slower than this in milliseconds count as congestion */
+    private long slowLatency = 10000;
+
+    /** Consecutive failures that open the circuit of a host */
+    private int failureThreshold = 5;
+
+    /** How long an open circuit rejects requests in milliseconds */
+    private long openTime = 60000;
+
+    /** Weight of the newest sample in the latency and error averages */
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private ConcurrentHashMap<String, HostState> hosts = new ConcurrentHashMap<String, HostState>();
+
+    private Random random = new Random();
+
+    /** What we know about one host, guarded by its own monitor */
+    private class HostState {
+        double limit = initialConcurrency;
+        int active = 0;
+
+        double latency = 0;
+        double errorRate = 0;
+        int consecutiveFailures = 0;
+
+        /** No requests before this time (backoff or Retry-After) */
+        long notBefore = 0;
+
+        /** The circuit rejects requests until this time */
+        long openUntil = 0;
+
+        /** After the circuit opened, a single trial request decides */
+        boolean trial = false;
+
+        public String toString() {
+            return "limit=" + String.format("%.2f", limit) + ",active=" + active + ",latency=" + Math.round(latency) + ",errorRate=" + String.format("%.2f", errorRate) + ",consecutiveFailures=" + consecutiveFailures;
+        }
+    }
+
+    public HostController() {
+
+    }
+
+    public int getInitialConcurrency() {
+        return initialConcurrency;
+    }
+
+    public void setInitialConcurrency(int initialConcurrency) {
+        if (initialConcurrency > 0) {
+            this.initialConcurrency = initialConcurrency;
+        }
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency > 0) {
+            this.maxConcurrency = maxConcurrency;
+        }
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries >= 0) {
+            this.maxRetries = maxRetries;
+        }
+    }
+
+    public long getBaseBackoff() {
+        return baseBackoff;
+    }
+
+    public void setBaseBackoff(long baseBackoff) {
+        if (baseBackoff >= 0) {
+            this.baseBackoff = baseBackoff;
+        }
+    }
+
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public void setMaxBackoff(long maxBackoff) {
+        if (maxBackoff >= 0) {
+            this.maxBackoff = maxBackoff;
+        }
+    }
+
+    public long getSlowLatency() {
+        return slowLatency;
+    }
+
+    public void setSlowLatency(long slowLatency) {
+        if (slowLatency > 0) {
+            this.slowLatency = slowLatency;
+        }
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold > 0) {
+            this.failureThreshold = failureThreshold;
+        }
+    }
+
+    public long getOpenTime() {
+        return openTime;
+    }
+
+    public void setOpenTime(long openTime) {
+        if (openTime >= 0) {
+            this.openTime = openTime;
+        }
+    }
+
+    private HostState getState(String host) {
+        HostState state = hosts.get(host);
+        if (state == null) {
+            HostState created = new HostState();
+            state = hosts.putIfAbsent(host, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Wait until a request to the host is allowed. Every acquire() must be
+     * followed by a release().
+     */
+    public void acquire(String host) throws InterruptedException, ProtocolException {
+
+        HostState state = getState(host);
+
+        // Only waits above the event's threshold are recorded
+        CrawlEvents.HostWait event = new CrawlEvents.HostWait();
+        event.begin();
+        boolean circuitOpen = false;
+        try {
+            synchronized (state) {
+                while (true) {
+                    long now = System.currentTimeMillis();
+
+                    if (state.openUntil > now) {
+                        circuitOpen = true;
+                        throw new ProtocolException("Circuit open for " + host + " after " + state.consecutiveFailures + " failures");
+                    }
+
+                    if (state.openUntil > 0) {
+                        // The circuit was open, let a single trial request through
+                        if (!state.trial && state.active == 0) {
+                            state.trial = true;
+                            state.active++;
+                            return;
+                        }
+                        state.wait(1000);
+                    } else if (state.notBefore > now) {
+                        state.wait(state.notBefore - now);
+                    } else if (state.active >= (int) state.limit) {
+                        state.wait();
+                    } else {
+                        state.active++;
+                        return;
+                    }
+                }
+            }
+        } finally {
+            if (event.shouldCommit()) {
+                event.host = host;
+                event.circuitOpen = circuitOpen;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Report the outcome of a request started with acquire(). Pass -1 as the
+     * status code if no response was received.
+     */
+    public void release(String host, long latency, int statusCode) {
+
+        HostState state = getState(host);
+        synchronized (state) {
+            state.active--;
+            state.trial = false;
+            state.latency = (state.latency == 0) ? latency : state.latency + EWMA_WEIGHT * (latency - state.latency);
+
+            boolean failed = isRetryable(statusCode);
+            state.errorRate += EWMA_WEIGHT * ((failed ? 1 : 0) - state.errorRate);
+
+            if (failed) {
+                state.consecutiveFailures++;
+                state.limit = Math.max(1, state.limit / 2);
+
+                if (state.consecutiveFailures >= failureThreshold) {
+                    state.openUntil = System.currentTimeMillis() + openTime;
+                }
+            } else {
+                state.consecutiveFailures = 0;
+                state.openUntil = 0;
+
+                if (latency > slowLatency) {
+                    // A slow answer is the host asking us to back off
+                    state.limit = Math.max(1, state.limit / 2);
+                } else {
+                    // Grows by about one request per round of requests
+                    state.limit = Math.min(maxConcurrency, state.limit + 1 / state.limit);
+                }
+            }
+
+            state.notifyAll();
+        }
+    }
+
+    /** Don't send requests to the host for the given time */
+    public void delay(String host, long millis) {
+
+        HostState state = getState(host);
+        synchronized (state) {
+            state.notBefore = Math.max(state.notBefore, System.currentTimeMillis() + millis);
+            state.notifyAll();
+        }
+    }
+
+    /** Rate limiting, server errors and failed connections are worth a retry */
+    public boolean isRetryable(int statusCode) {
+        return statusCode == -1 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Time to wait before the given retry (0 is the first). The exponential
+     * backoff is jittered, and a Retry-After header, in seconds or as an HTTP
+     * date, can only make it longer.
+     */
+    public long getBackoff(int retry, String retryAfter) {
+
+        long backoff = baseBackoff << Math.min(retry, 20);
+        backoff = backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+
+        if (retryAfter != null) {
+            retryAfter = retryAfter.trim();
+            long requested = -1;
+            try {
+                requested = Long.parseLong(retryAfter) * 1000;
+            } catch (NumberFormatException e) {
+                Date date = DateUtils.parseDate(retryAfter);
+                if (date != null) {
+                    requested = date.getTime() - System.currentTimeMillis();
+                }
+            }
+            backoff = Math.max(backoff, requested);
+        }
+
+        return Math.min(backoff, maxBackoff);
+    }
+
+    public String getHostStatus(String host) {
+        HostState state = hosts.get(host);
+        if (state == null) {
+            return null;
+        }
+        synchronized (state) {
+            return state.toString();
+        }
+    }
+
+    public String toString() {
+        return "hosts=" + hosts.size() + ",initialConcurrency=" + initialConcurrency + ",maxConcurrency=" + maxConcurrency + ",maxRetries=" + maxRetries;
+    }
+}
@@ -0,0 +1,144 @@
+package sitemap;
+
+import static sitemap.TestSupport.check;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * Checks that the HostController limits the concurrent requests per host,
+ * halves the limit on failures, backs off exponentially or as long as
+ * Retry-After asks, and opens the circuit of a failing host until a trial
+ * request succeeds. Run with java sitemap.HostControllerTest, it exits with
+ * an error on the first failed check.
+ */
+public class HostControllerTest {
+
+    public static void main(String[] args) throws Exception {
+        testConcurrencyLimit();
+        testFailureHalvesLimit();
+        testBackoff();
+        testDelay();
+        testCircuitBreaker();
+        System.out.println("HostControllerTest OK");
+    }
+
+    /** Try to acquire the host in another thread, true if it got through in time */
+    private static boolean acquires(final HostController controller, final String host, long millis) throws InterruptedException {
+
+        final AtomicBoolean acquired = new AtomicBoolean();
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    controller.acquire(host);
+                    acquired.set(true);
+                } catch (InterruptedException e) {
+                    // Gave up waiting
+                } catch (ProtocolException e) {
+                    // Circuit open
+                }
+            }
+        };
+        thread.start();
+        thread.join(millis);
+
+        if (!acquired.get()) {
+            thread.interrupt();
+            thread.join();
+        }
+        return acquired.get();
+    }
+
+    private static void testConcurrencyLimit() throws Exception {
+        HostController controller = new HostController();
+        controller.setInitialConcurrency(2);
+
+        controller.acquire("a.example.com");
+        controller.acquire("a.example.com");
+        check(!acquires(controller, "a.example.com", 200), "third request waits for one of two");
+        check(acquires(controller, "b.example.com", 200), "other hosts aren't held up");
+
+        controller.release("a.example.com", 10, 200);
+        check(acquires(controller, "a.example.com", 200), "released slot taken");
+    }
+
+    private static void testFailureHalvesLimit() throws Exception {
+        HostController controller = new HostController();
+        controller.setInitialConcurrency(4);
+
+        for (int i = 0; i < 4; i++) {
+            controller.acquire("a.example.com");
+        }
+        controller.release("a.example.com", 10, 503);
+
+        // The limit is down to two, with three requests still out
+        controller.release("a.example.com", 10, 200);
+        check(!acquires(controller, "a.example.com", 200), "limit halved after a 503");
+        controller.release("a.example.com", 10, 200);
+        check(acquires(controller, "a.example.com", 200), "request allowed below the halved limit");
+
+        check(controller.isRetryable(429) && controller.isRetryable(503) && controller.isRetryable(-1), "429, 5xx and no response are retried");
+        check(!controller.isRetryable(404) && !controller.isRetryable(200), "404 and 200 aren't retried");
+    }
+
+    private static void testBackoff() {
+        HostController controller = new HostController();
+        controller.setBaseBackoff(1000);
+        controller.setMaxBackoff(60000);
+
+        for (int retry = 0; retry < 4; retry++) {
+            long backoff = controller.getBackoff(retry, null);
+            long full = 1000L << retry;
+            check(backoff >= full / 2 && backoff <= full, "backoff of retry " + retry + " is " + backoff);
+        }
+        check(controller.getBackoff(30, null) <= 60000, "backoff capped");
+
+        check(controller.getBackoff(0, "20") >= 20000, "Retry-After in seconds");
+        check(controller.getBackoff(0, "3600") == 60000, "Retry-After capped");
+
+        String date = DateUtils.formatDate(new Date(System.currentTimeMillis() + 30000));
+        long backoff = controller.getBackoff(0, date);
+        check(backoff > 25000 && backoff <= 30000, "Retry-After as a date, " + backoff);
+
+        check(controller.getBackoff(0, "soon") <= 1000, "bad Retry-After ignored");
+    }
+
+    private static void testDelay() throws Exception {
+        HostController controller = new HostController();
+        controller.delay("a.example.com", 500);
+
+        long start = System.currentTimeMillis();
+        controller.acquire("a.example.com");
+        long waited = System.currentTimeMillis() - start;
+        check(waited >= 450, "acquire waited for the delay, " + waited + " ms");
+    }
+
+    private static void testCircuitBreaker() throws Exception {
+        HostController controller = new HostController();
+        controller.setFailureThreshold(3);
+        controller.setOpenTime(300);
+
+        for (int i = 0; i < 3; i++) {
+            controller.acquire("a.example.com");
+            controller.release("a.example.com", 10, 500);
+        }
+
+        try {
+            controller.acquire("a.example.com");
+            check(false, "circuit open after three failures");
+        } catch (ProtocolException e) {
+            // Expected
+        }
+
+        // After the open time a single trial request goes through
+        Thread.sleep(350);
+        controller.acquire("a.example.com");
+        check(!acquires(controller, "a.example.com", 200), "only one trial request");
+
+        // Its success closes the circuit
+        controller.release("a.example.com", 10, 200);
+        check(acquires(controller, "a.example.com", 200), "circuit closed after the trial succeeded");
+    }
+}
@@ -0,0 +1,79 @@
+package sitemap;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A CrawlTransport between nodes in the same JVM, for tests and for running
+ * several workers on one machine. Each node has a queue and a thread that
+ * delivers its messages one after the other.
+ */
+public class InProcessTransport implements CrawlTransport {
+
+    private ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<String, Mailbox>();
+
+    /** Tells a mailbox thread to stop */
+    private static final CrawlMessage STOP = CrawlMessage.done(null, null, 0, null);
+
+    private static class Mailbox extends Thread {
+        private BlockingQueue<CrawlMessage> queue = new LinkedBlockingQueue<CrawlMessage>();
+        private Receiver receiver;
+
+        Mailbox(String node, Receiver receiver) {
+            super("mailbox-" + node);
+            this.receiver = receiver;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                for (CrawlMessage m = queue.take(); m != STOP; m = queue.take()) {
+                    try {
+                        receiver.receive(m);
+                    } catch (RuntimeException e) {
+                        // Keep delivering the other messages
+                        e.printStackTrace();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            }
+        }
+    }
+
+    public InProcessTransport() {
+
+    }
+
+    public void register(String node, Receiver receiver) {
+        Mailbox mailbox = new Mailbox(node, receiver);
+        Mailbox old = mailboxes.put(node, mailbox);
+        if (old != null) {
+            old.queue.add(STOP);
+        }
+        mailbox.start();
+    }
+
+    public void unregister(String node) {
+        Mailbox mailbox = mailboxes.remove(node);
+        if (mailbox != null) {
+            mailbox.queue.add(STOP);
+        }
+    }
+
+    public void send(String node, CrawlMessage message) throws IOException {
+        Mailbox mailbox = mailboxes.get(node);
+        if (mailbox == null) {
+            throw new IOException("Unknown node " + node);
+        }
+        mailbox.queue.add(message);
+    }
+
+    public void close() {
+        for (String node : mailboxes.keySet()) {
+            unregister(node);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package sitemap;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sitemap.Sitemap.SitemapType;
+
+/**
+ * Crawls the Sitemap Indexes of a MockSitemapServer and reports throughput,
+ * latency percentiles and heap use.
+ *
+ * Usage: java sitemap.LoadTest [-sites n] [-threads n] [-urls n] [-sitemaps n]
+ * [-latency ms] [-errors rate] [-malformed rate] [-drip bytes/s]
+ * [-retries n] [-delay ms] [-dedup]
+ */
+public class LoadTest {
+
+    /** Fetch and parse time of each Sitemap in milliseconds */
+    private List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+
+    private AtomicLong urls = new AtomicLong();
+
+    private AtomicLong sitemaps = new AtomicLong();
+
+    private AtomicLong failures = new AtomicLong();
+
+    /** Highest heap use seen while crawling */
+    private volatile long peakHeap = 0;
+
+    /** Delay of the parsers between requests, the HostController paces hosts anyway */
+    private int delay;
+
+    public LoadTest(int delay) {
+        this.delay = delay;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int sites = 20;
+        int threads = 8;
+        int retries = -1;
+        int delay = 0;
+        boolean dedup = false;
+
+        MockSitemapServer server = new MockSitemapServer(0);
+
+        for (int a = 0; a < args.length; a++) {
+            String option = args[a];
+            if (option.equals("-dedup")) {
+                dedup = true;
+                continue;
+            }
+
+            if (a + 1 == args.length) {
+                System.out.println("Missing value for " + option);
+                System.exit(-1);
+            }
+            String value = args[++a];
+
+            if (option.equals("-sites")) {
+                sites = Integer.parseInt(value);
+            } else if (option.equals("-threads")) {
+                threads = Integer.parseInt(value);
+            } else if (option.equals("-urls")) {
+                server.setUrlsPerSitemap(Integer.parseInt(value));
+            } else if (option.equals("-sitemaps")) {
+                server.setSitemapsPerIndex(Integer.parseInt(value));
+            } else if (option.equals("-latency")) {
+                server.setLatency(Integer.parseInt(value));
+            } else if (option.equals("-errors")) {
+                server.setErrorRate(Double.parseDouble(value));
+            } else if (option.equals("-malformed")) {
+                server.setMalformedRate(Double.parseDouble(value));
+            } else if (option.equals("-drip")) {
+                server.setDripRate(Integer.parseInt(value));
+            } else if (option.equals("-retries")) {
+                retries = Integer.parseInt(value);
+            } else if (option.equals("-delay")) {
+                delay = Integer.parseInt(value);
+            } else {
+                System.out.println("Unknown option " + option);
+                System.exit(-1);
+            }
+        }
+
+        server.start();
+        try {
+            HostController hostController = new HostController();
+            if (retries >= 0) {
+                hostController.setMaxRetries(retries);
+            }
+
+            UrlDeduplicator deduplicator = dedup ? new UrlDeduplicator(sites * server.getSitemapsPerIndex() * server.getUrlsPerSitemap(), 0.01, false) : null;
+
+            new LoadTest(delay).run(server, sites, threads, hostController, deduplicator);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void run(final MockSitemapServer server, int sites, int threads, final HostController hostController, final UrlDeduplicator deduplicator) throws InterruptedException {
+
+        System.out.println("Crawling " + sites + " sites with " + server.getSitemapsPerIndex() + " Sitemaps of " + server.getUrlsPerSitemap() + " URLs each on " + threads + " threads");
+
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Thread sampler = new Thread() {
+            public void run() {
+                while (!isInterrupted()) {
+                    peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        sampler.setDaemon(true);
+        sampler.start();
+
+        long start = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int site = 0; site < sites; site++) {
+            final String indexUrl = server.getIndexUrl(site);
+            pool.execute(new Runnable() {
+                public void run() {
+                    crawlSite(indexUrl, hostController, deduplicator);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        sampler.interrupt();
+
+        System.out.println(String.format("Sitemaps: %d in %.1f s, %.1f per s, %d failed", sitemaps.get(), seconds, sitemaps.get() / seconds, failures.get()));
+        System.out.println(String.format("URLs: %d, %.0f per s", urls.get(), urls.get() / seconds));
+        System.out.println("Latency: p50 " + percentile(50) + " ms, p90 " + percentile(90) + " ms, p99 " + percentile(99) + " ms, max " + percentile(100) + " ms");
+        System.out.println("Heap: peak " + (peakHeap / (1024 * 1024)) + " MB, max " + (Runtime.getRuntime().maxMemory() / (1024 * 1024)) + " MB");
+        System.out.println("Server: " + server.getRequests() + " requests, " + (server.getBytesSent() / 1024) + " KB sent");
+        if (deduplicator != null) {
+            System.out.println("Deduplicator: " + deduplicator);
+        }
+    }
+
+    /** Crawl a Sitemap Index and all its Sitemaps like Main does */
+    private void crawlSite(String indexUrl, HostController hostController, UrlDeduplicator deduplicator) {
+
+        SitemapParser parser = new SitemapParser();
+        parser.setHostController(hostController);
+        parser.setDeduplicator(deduplicator);
+        parser.setDelayBetweenRequests(delay);
+
+        try {
+            long start = System.nanoTime();
+            SitemapType type = parser.processSitemap(new URL(indexUrl));
+            record(start);
+            if (type != SitemapType.INDEX) {
+                urls.addAndGet(parser.getSitemap().getUrlListSize());
+                return;
+            }
+        } catch (Exception e) {
+            failed(indexUrl, e);
+            return;
+        }
+
+        SitemapIndex index = parser.sitemapIndex;
+        for (Sitemap sitemap = index.getUnprocessedSitemap(); sitemap != null; sitemap = index.getUnprocessedSitemap()) {
+            long start = System.nanoTime();
+            try {
+                parser.processSitemap(sitemap);
+                record(start);
+                urls.addAndGet(sitemap.getUrlListSize());
+            } catch (Exception e) {
+                failed(sitemap.getUrl().toString(), e);
+            }
+            index.freeSitemap(sitemap);
+        }
+    }
+
+    private void record(long start) {
+        latencies.add((System.nanoTime() - start) / 1000000);
+        sitemaps.incrementAndGet();
+    }
+
+    private void failed(String url, Exception e) {
+        failures.incrementAndGet();
+        if (failures.get() <= 10) {
+            System.out.println("Failed " + url + ": " + e);
+        }
+    }
+
+    private long percentile(int p) {
+
+        List<Long> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<Long>(latencies);
+        }
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+
+        Collections.sort(sorted);
+        int i = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(i, sorted.size() - 1)));
+    }
+}
@@ -0,0 +1,165 @@
+package sitemap;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sitemap.Sitemap.SitemapType;
+
+/**
+ * The LocalSitemapProcessor parses every Sitemap file found in a directory
+ * tree, spreading the files over a pool of SitemapParsers
+ */
+public class LocalSitemapProcessor {
+
+    /**
+     * Receives the result of each file, called from the worker threads. The
+     * URL list of the Sitemap is freed once sitemapProcessed() returns.
+     */
+    public interface Listener {
+        void sitemapProcessed(Path file, SitemapParser parser, SitemapType type);
+
+        void sitemapFailed(Path file, Exception e);
+    }
+
+    /** Number of files parsed at the same time */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** Optional fields the parsers decode */
+    private EnumSet<SitemapUrl.Field> fields = EnumSet.allOf(SitemapUrl.Field.class);
+
+    /** Shared by all parsers, optional */
+    private UrlDeduplicator deduplicator = null;
+
+    /** Turn on verbose output of the parsers */
+    public boolean VERBOSE = false;
+
+    /** Turn on debug output of the parsers */
+    public boolean DEBUG = false;
+
+    public LocalSitemapProcessor() {
+
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads > 0) {
+            this.threads = threads;
+        }
+    }
+
+    public EnumSet<SitemapUrl.Field> getFields() {
+        return EnumSet.copyOf(fields);
+    }
+
+    public void setFields(EnumSet<SitemapUrl.Field> fields) {
+        this.fields = EnumSet.copyOf(fields);
+    }
+
+    public UrlDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    public void setDeduplicator(UrlDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    /** Does the file name look like something we can parse? */
+    public static boolean isSitemapFile(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        return name.endsWith(".xml") || name.endsWith(".gz") || name.endsWith(".txt");
+    }
+
+    /**
+     * Parse all Sitemap files below root and return how many were found. The
+     * tree is walked lazily and only a few files per thread are queued at any
+     * time, so huge trees don't pile up in memory.
+     */
+    public int process(Path root, final Listener listener) throws IOException, InterruptedException {
+
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final Semaphore queued = new Semaphore(threads * 4);
+        final AtomicInteger files = new AtomicInteger();
+
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) throws IOException {
+
+                    if (!attrs.isRegularFile() || !isSitemapFile(file)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    try {
+                        queued.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return FileVisitResult.TERMINATE;
+                    }
+
+                    files.incrementAndGet();
+                    pool.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                processFile(file, listener);
+                            } finally {
+                                queued.release();
+                            }
+                        }
+                    });
+
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    listener.sitemapFailed(file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        return files.get();
+    }
+
+    private void processFile(Path file, Listener listener) {
+
+        // Parsers keep the state of the Sitemap they work on, so each file
+        // gets its own
+        SitemapParser parser = new SitemapParser();
+        parser.VERBOSE = VERBOSE;
+        parser.DEBUG = DEBUG;
+        parser.setFields(fields);
+        parser.setDeduplicator(deduplicator);
+
+        try {
+            SitemapType type = parser.processSitemap(file.toUri().toURL());
+            listener.sitemapProcessed(file, parser, type);
+        } catch (Exception e) {
+            listener.sitemapFailed(file, e);
+        } finally {
+            // An index has no URL list of its own
+            Sitemap sitemap = parser.getSitemap();
+            if (sitemap != null) {
+                sitemap.clearUrlList();
+            }
+        }
+    }
+}
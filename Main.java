@@ -1,8 +1,19 @@
 package sitemap;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URI;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import sitemap.Sitemap.SitemapType;
 
@@ -10,44 +21,150 @@ public class Main {
     public static void main(String[] args) {
         // If the user entered too few arguments, output the usage and quit.
         if (args.length < 1) {
-            System.out.println("Usage: java SitemapParser <Sitemap URL>");
-            System.exit(-1);
+            usage();
         }
 
         SitemapParser parser = new SitemapParser();
+        parser.setHostController(new HostController());
+        CrawlCheckpoint checkpoint = null;
+        SitemapWriter writer = null;
+        int workers = 0;
+        int top = 0;
 
         String sUrl = null;
 
-        // Verbose option?
-        if (args[0].equals("-d") && args.length >= 2) {
-            parser.VERBOSE = true;
-            sUrl = args[1];
-        } else {
-            sUrl = args[0];
+        int a = 0;
+        for (; a < args.length - 1 && args[a].startsWith("-"); a++) {
+            if (args[a].equals("-d")) {
+                // Verbose option
+                parser.VERBOSE = true;
+            } else if (args[a].equals("-c")) {
+                // Checkpoint the crawl and resume from an existing checkpoint
+                a++;
+                checkpoint = new CrawlCheckpoint(new File(args[a]));
+            } else if (args[a].equals("-f")) {
+                // Only decode the listed fields, the URL is always decoded
+                a++;
+                EnumSet<SitemapUrl.Field> fields = EnumSet.noneOf(SitemapUrl.Field.class);
+                for (String name : args[a].split(",")) {
+                    SitemapUrl.Field field = SitemapUrl.Field.forElement(name.trim());
+                    if (field != null) {
+                        fields.add(field);
+                    } else if (!name.trim().equals("loc")) {
+                        System.out.println("Unknown field " + name);
+                        System.exit(-1);
+                    }
+                }
+                parser.setFields(fields);
+            } else if (args[a].equals("-m")) {
+                // URL lists beyond this budget are spilled to disk
+                a++;
+                SpillingUrlList.setMemoryBudget(Long.parseLong(args[a]) * 1024 * 1024);
+            } else if (args[a].equals("-w") && a + 3 < args.length) {
+                // Republish the URLs as gzipped Sitemaps and an index
+                writer = new SitemapWriter(new File(args[a + 1]), args[a + 2]);
+                a += 2;
+            } else if (args[a].equals("-n")) {
+                // Split the hosts between workers in this JVM
+                a++;
+                workers = Integer.parseInt(args[a]);
+            } else if (args[a].equals("-t")) {
+                // Only output the freshest URLs of each Sitemap
+                a++;
+                top = Integer.parseInt(args[a]);
+            } else if (args[a].equals("-u")) {
+                // Output each URL only once, even if several Sitemaps list
+                // it. The Bloom filter drops about 1% of the new URLs too.
+                parser.setDeduplicator(new UrlDeduplicator(10000000, 0.01, false));
+            } else if (args[a].equals("-U")) {
+                // Like -u without dropping new URLs, for about 40 bytes of
+                // direct memory per URL
+                parser.setDeduplicator(new UrlDeduplicator(1000000, 0.01, true));
+            } else {
+                System.out.println("Unknown option " + args[a]);
+                System.exit(-1);
+            }
+        }
+
+        // The last option took the argument meant for the Sitemap
+        if (a >= args.length) {
+            usage();
+        }
+        sUrl = args[a];
+
+        // A resumed crawl would start the parts over and leave the URLs
+        // output before it out of the index
+        if (writer != null && checkpoint != null) {
+            System.out.println("Output Sitemaps (-w) can't be written with a checkpoint (-c)");
+            System.exit(-1);
+        }
+
+        // Archived Sitemaps can be given as a file, a directory or a file: URL
+        Path path = localPath(sUrl);
+        if (path != null && Files.isDirectory(path)) {
+            processDirectory(parser, path, writer, top);
+            closeWriter(writer);
+            return;
         }
 
         URL url = null;
         try {
-            url = new URL(sUrl);
+            url = (path != null) ? path.toUri().toURL() : new URL(sUrl);
         } catch (Exception e) {
             System.out.println("Bad URL [" + sUrl + "]: " + e.getMessage());
             System.exit(-1);
         }
 
+        if (workers > 0) {
+            if (checkpoint != null) {
+                System.out.println("A checkpoint (-c) can't be used with workers (-n)");
+                System.exit(-1);
+            }
+            processDistributed(parser, url, workers, writer, top);
+            closeWriter(writer);
+            return;
+        }
+
         Sitemap sitemap;
         SitemapType type = null;
 
+        // Number of the first Sitemap we output
+        int first = 1;
+
+        CrawlEvents.IndexTraversal traversal = new CrawlEvents.IndexTraversal();
+        traversal.begin();
+        int output = 0;
+        int failed = 0;
+        long urls = 0;
+
         try {
-            // We don't know if this URL points to a Sitemap or a Sitemap Index,
-            // but we will after processing it.
-            type = parser.processSitemap(url);
+            if (checkpoint != null && checkpoint.exists()) {
+                // Pick up the Sitemap Index where the previous run stopped
+                SitemapIndex index = checkpoint.load(parser);
+                if (!index.getUrl().toString().equals(url.toString())) {
+                    System.out.println("Checkpoint " + checkpoint.getFile() + " belongs to " + index.getUrl());
+                    System.exit(-1);
+                }
+
+                parser.sitemapIndex = index;
+                type = SitemapType.INDEX;
+                first = checkpoint.getSitemapsOutput() + 1;
+                System.out.println("Resuming Sitemap Index with " + index.getSitemapListSize() + " Sitemaps after " + checkpoint.getSitemapsOutput() + " Sitemaps.");
+            } else {
+                // We don't know if this URL points to a Sitemap or a Sitemap Index,
+                // but we will after processing it.
+                type = parser.processSitemap(url);
+            }
 
             // If this was a Sitemap Index, we'll need to process
             // each unprocessed Sitemaps found in the index.
             if (type == SitemapType.INDEX) {
                 System.out.println("Sitemap Index found with " + parser.sitemapIndex.getSitemapListSize() + " Sitemaps.");
+                saveCheckpoint(checkpoint, parser, first - 1, true);
                 sitemap = parser.sitemapIndex.getUnprocessedSitemap();
-                parser.processSitemap(sitemap);
+                if (sitemap != null) {
+                    parser.processSitemap(sitemap);
+                }
             }
         } catch (UnknownFormatException e) {
             System.out.println(e.getMessage());
@@ -63,13 +180,11 @@ public class Main {
         sitemap = parser.getSitemap();
 
         // Loop through all the Sitemaps found in a Sitemap Index
-        for (int i = 1; sitemap != null; i++) {
+        for (int i = first; sitemap != null; i++) {
             System.out.println("Sitemap " + i + ". " + sitemap);
-            int j = 1;
-            for (Iterator<SitemapUrl> it = sitemap.getUrlList().iterator(); it.hasNext();) {
-                System.out.println(j + ". " + it.next());
-                j++;
-            }
+            urls += printUrls(sitemap, top);
+            writeSitemap(writer, sitemap, top);
+            output++;
 
             try {
                 // If we originally found a Sitemap Index, parse any remaining
@@ -80,6 +195,9 @@ public class Main {
                     // because of memory constraints
                     parser.sitemapIndex.freeSitemap(sitemap);
 
+                    // Everything marked as processed so far has been output
+                    saveCheckpoint(checkpoint, parser, i, false);
+
                     sitemap = parser.sitemapIndex.getUnprocessedSitemap();
                     if (sitemap != null) {
                         parser.processSitemap(sitemap);
@@ -92,13 +210,295 @@ public class Main {
                 }
             } catch (UnknownFormatException e) {
                 System.out.println(e.getMessage());
+                failed++;
             } catch (ProtocolException e) {
                 e.printStackTrace();
+                failed++;
             } catch (IOException e) {
                 e.printStackTrace();
+                failed++;
             } catch (InterruptedException e) {
                 e.printStackTrace();
+                failed++;
+            }
+        }
+
+        if (type == SitemapType.INDEX && traversal.shouldCommit()) {
+            traversal.url = url.toString();
+            traversal.sitemaps = parser.sitemapIndex.getSitemapListSize();
+            traversal.sitemapsOutput = output;
+            traversal.sitemapsFailed = failed;
+            traversal.urls = urls;
+            traversal.commit();
+        }
+
+        // The crawl completed, so there is nothing left to resume
+        if (checkpoint != null && type == SitemapType.INDEX) {
+            checkpoint.delete();
+        }
+
+        closeWriter(writer);
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java SitemapParser [-d] [-c <checkpoint file>] [-f <fields, e.g. loc,lastmod>] [-u | -U] [-m <memory budget in MB>] [-w <output directory> <base URL>] [-n <workers>] [-t <top URLs per Sitemap>] <Sitemap URL, file or directory>");
+        System.out.println("  -u drops URLs already output and about 1% of new URLs, -U drops only URLs already output but takes 27-53 bytes");
+        System.out.println("     of direct memory per URL (raise -XX:MaxDirectMemorySize), it falls back to -u when that runs out");
+        System.exit(-1);
+    }
+
+    /** All URLs, or the top ones newest first, picked without sorting the list */
+    private static Iterable<SitemapUrl> urlsToOutput(Sitemap sitemap, int top) {
+        if (top <= 0)
+            return sitemap.getUrlList();
+
+        return TopK.select(sitemap.getUrlList(), top, SitemapUrlIndex.BY_FRESHNESS);
+    }
+
+    /** Print the URLs to output and return how many there were */
+    private static int printUrls(Sitemap sitemap, int top) {
+
+        CrawlEvents.SinkWrite event = new CrawlEvents.SinkWrite();
+        event.begin();
+
+        // Counting characters costs a little, so only while recording
+        boolean recording = event.isEnabled();
+        long chars = 0;
+        int j = 1;
+        for (Iterator<SitemapUrl> it = urlsToOutput(sitemap, top).iterator(); it.hasNext();) {
+            String line = j + ". " + it.next();
+            System.out.println(line);
+            if (recording)
+                chars += line.length() + 1;
+            j++;
+        }
+
+        if (event.shouldCommit()) {
+            event.sink = "stdout";
+            event.target = sitemap.getUrl().toString();
+            event.urls = j - 1;
+            event.bytes = chars;
+            event.commit();
+        }
+        return j - 1;
+    }
+
+    /** Write the URLs to output, so -t limits the written Sitemaps too */
+    private static void writeSitemap(SitemapWriter writer, Sitemap sitemap, int top) {
+        if (writer == null)
+            return;
+
+        try {
+            for (SitemapUrl sUrl : urlsToOutput(sitemap, top)) {
+                writer.write(sUrl);
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to write URLs of " + sitemap.getUrl() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeUrl(SitemapWriter writer, SitemapUrl sUrl) {
+        if (writer == null)
+            return;
+
+        try {
+            writer.write(sUrl);
+        } catch (IOException e) {
+            System.out.println("Failed to write " + sUrl.getUrl() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeWriter(SitemapWriter writer) {
+        if (writer == null)
+            return;
+
+        try {
+            File index = writer.close();
+            System.out.println("Wrote " + writer.getUrlsWritten() + " URLs to Sitemap Index " + index + ".");
+        } catch (IOException e) {
+            System.out.println("Failed to write Sitemaps: " + e.getMessage());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void saveCheckpoint(CrawlCheckpoint checkpoint, SitemapParser parser, int sitemapsOutput, boolean force) {
+        if (checkpoint == null)
+            return;
+
+        // A failed checkpoint shouldn't stop the crawl itself
+        try {
+            if (force) {
+                checkpoint.save(parser.sitemapIndex, parser, sitemapsOutput);
+            } else {
+                checkpoint.saveIfDue(parser.sitemapIndex, parser, sitemapsOutput);
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to save checkpoint " + checkpoint.getFile() + ": " + e.getMessage());
+        }
+    }
+
+    private static Path localPath(String s) {
+        try {
+            if (s.startsWith("file:")) {
+                return Paths.get(new URI(s));
+            }
+
+            if (!s.contains("://")) {
+                Path path = Paths.get(s);
+                if (Files.exists(path)) {
+                    return path;
+                }
+            }
+        } catch (Exception e) {
+            // Not a usable local path, so treat it as a URL
+        }
+
+        return null;
+    }
+
+    /** Crawl with a coordinator and in-process workers that split the hosts */
+    private static void processDistributed(SitemapParser parser, URL url, int workers, final SitemapWriter writer, final int top) {
+
+        InProcessTransport transport = new InProcessTransport();
+        final AtomicInteger count = new AtomicInteger();
+        final UrlDeduplicator deduplicator = parser.getDeduplicator();
+
+        // The freshest URLs of each Sitemap until it's done, with -t
+        final Map<String, TopK<SitemapUrl>> tops = new HashMap<String, TopK<SitemapUrl>>();
+
+        // The transport delivers the results one after the other. The
+        // workers' URL lists spill under the memory budget of -m like the
+        // parser's.
+        CrawlCoordinator coordinator = new CrawlCoordinator("coordinator", transport, new CrawlCoordinator.Listener() {
+            public void urlsReceived(String sitemapUrl, List<SitemapUrl> urls) {
+                for (SitemapUrl sUrl : urls) {
+                    if (deduplicator != null && !deduplicator.add(sUrl.getUrl().toString())) {
+                        continue;
+                    }
+
+                    if (top > 0) {
+                        TopK<SitemapUrl> topK = tops.get(sitemapUrl);
+                        if (topK == null) {
+                            topK = new TopK<SitemapUrl>(top, SitemapUrlIndex.BY_FRESHNESS);
+                            tops.put(sitemapUrl, topK);
+                        }
+                        topK.offer(sUrl);
+                    } else {
+                        output(sUrl);
+                    }
+                }
+            }
+
+            private void output(SitemapUrl sUrl) {
+                System.out.println(count.incrementAndGet() + ". " + sUrl);
+                writeUrl(writer, sUrl);
+            }
+
+            public void sitemapDone(String sitemapUrl, int urls, String error) {
+                TopK<SitemapUrl> topK = tops.remove(sitemapUrl);
+                if (topK != null) {
+                    for (SitemapUrl sUrl : topK.getResult()) {
+                        output(sUrl);
+                    }
+                }
+
+                if (error != null) {
+                    System.out.println("Failed to process " + sitemapUrl + ": " + error);
+                } else {
+                    System.out.println("Sitemap " + sitemapUrl + " done with " + urls + " URLs.");
+                }
             }
+        });
+
+        List<CrawlWorker> crawlWorkers = new ArrayList<CrawlWorker>();
+        for (int i = 1; i <= workers; i++) {
+            CrawlWorker worker = new CrawlWorker("worker-" + i, coordinator.getNode(), transport);
+            worker.VERBOSE = parser.VERBOSE;
+            worker.DEBUG = parser.DEBUG;
+            worker.setDelayBetweenRequests(parser.getDelayBetweenRequests());
+            worker.setFields(parser.getFields());
+            worker.start();
+            coordinator.addWorker(worker.getNode());
+            crawlWorkers.add(worker);
+        }
+
+        try {
+            coordinator.submit(url.toString());
+            coordinator.awaitCompletion(Long.MAX_VALUE);
+
+            for (CrawlWorker worker : crawlWorkers) {
+                worker.stop();
+            }
+
+            if (deduplicator != null) {
+                System.out.println("Dropped " + deduplicator.getDuplicates() + " duplicate URLs.");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            transport.close();
+        }
+    }
+
+    /** Parse every Sitemap file in a directory tree in parallel */
+    private static void processDirectory(SitemapParser parser, Path dir, final SitemapWriter writer, final int top) {
+
+        LocalSitemapProcessor processor = new LocalSitemapProcessor();
+        processor.VERBOSE = parser.VERBOSE;
+        processor.DEBUG = parser.DEBUG;
+        processor.setFields(parser.getFields());
+        processor.setDeduplicator(parser.getDeduplicator());
+
+        final AtomicInteger count = new AtomicInteger();
+
+        try {
+            int files = processor.process(dir, new LocalSitemapProcessor.Listener() {
+                public void sitemapProcessed(Path file, SitemapParser p, SitemapType type) {
+
+                    // Keep the output of each file together
+                    synchronized (System.out) {
+                        int i = count.incrementAndGet();
+                        if (type == SitemapType.INDEX) {
+                            System.out.println("Sitemap Index " + i + ". " + p.sitemapIndex);
+                            int j = 1;
+                            for (Iterator<Sitemap> it = p.sitemapIndex.getSitemapList().iterator(); it.hasNext();) {
+                                System.out.println(j + ". " + it.next());
+                                j++;
+                            }
+                        } else {
+                            Sitemap sitemap = p.getSitemap();
+                            System.out.println("Sitemap " + i + ". " + sitemap);
+                            printUrls(sitemap, top);
+                        }
+                    }
+
+                    if (type != SitemapType.INDEX) {
+                        writeSitemap(writer, p.getSitemap(), top);
+                    }
+                }
+
+                public void sitemapFailed(Path file, Exception e) {
+                    synchronized (System.out) {
+                        System.out.println("Failed to process " + file + ": " + e.getMessage());
+                    }
+                }
+            });
+
+            System.out.println("Processed " + files + " files.");
+            if (parser.getDeduplicator() != null) {
+                System.out.println("Dropped " + parser.getDeduplicator().getDuplicates() + " duplicate URLs.");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
         }
     }
 }
@@ -0,0 +1,357 @@
+package sitemap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server that makes up Sitemaps on the fly, for load tests that
+ * shouldn't hit real sites. Site n has a Sitemap Index at /s/n/index.xml
+ * whose Sitemaps take turns being a urlset, a text file, a gzipped urlset, an
+ * RSS and an Atom feed. Latency, errors, slow responses and broken documents
+ * can be switched on.
+ */
+public class MockSitemapServer {
+
+    private static final String[] CHANGE_FREQS = { "daily", "weekly", "monthly", "hourly", "yearly" };
+
+    /** Formats of the Sitemaps of an index, in turn */
+    private static final String[] KINDS = { "urlset", "text", "gz", "rss", "atom" };
+
+    private HttpServer server;
+
+    private ExecutorService pool;
+
+    private int port;
+
+    /** Number of threads serving requests */
+    private int threads = 32;
+
+    private int urlsPerSitemap = 1000;
+
+    private int sitemapsPerIndex = 10;
+
+    /** Delay before each response in milliseconds */
+    private int latency = 0;
+
+    /** Fraction of requests answered with 503 */
+    private double errorRate = 0.0;
+
+    /** Fraction of documents cut off in the middle */
+    private double malformedRate = 0.0;
+
+    /** Send responses at this many bytes per second, 0 for full speed */
+    private int dripRate = 0;
+
+    private AtomicLong requests = new AtomicLong();
+
+    private AtomicLong bytesSent = new AtomicLong();
+
+    /** Use port 0 for any free port */
+    public MockSitemapServer(int port) {
+        this.port = port;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads > 0) {
+            this.threads = threads;
+        }
+    }
+
+    public int getUrlsPerSitemap() {
+        return urlsPerSitemap;
+    }
+
+    public void setUrlsPerSitemap(int urlsPerSitemap) {
+        if (urlsPerSitemap >= 0) {
+            this.urlsPerSitemap = urlsPerSitemap;
+        }
+    }
+
+    public int getSitemapsPerIndex() {
+        return sitemapsPerIndex;
+    }
+
+    public void setSitemapsPerIndex(int sitemapsPerIndex) {
+        if (sitemapsPerIndex >= 0) {
+            this.sitemapsPerIndex = sitemapsPerIndex;
+        }
+    }
+
+    public int getLatency() {
+        return latency;
+    }
+
+    public void setLatency(int latency) {
+        if (latency >= 0) {
+            this.latency = latency;
+        }
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public void setErrorRate(double errorRate) {
+        if (errorRate >= 0 && errorRate <= 1) {
+            this.errorRate = errorRate;
+        }
+    }
+
+    public double getMalformedRate() {
+        return malformedRate;
+    }
+
+    public void setMalformedRate(double malformedRate) {
+        if (malformedRate >= 0 && malformedRate <= 1) {
+            this.malformedRate = malformedRate;
+        }
+    }
+
+    public int getDripRate() {
+        return dripRate;
+    }
+
+    public void setDripRate(int dripRate) {
+        if (dripRate >= 0) {
+            this.dripRate = dripRate;
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public void start() throws IOException {
+
+        // Bound to all addresses, so every 127.x.y.z address reaches it
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        pool = Executors.newFixedThreadPool(threads);
+        server.setExecutor(pool);
+        server.createContext("/s/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        port = server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        pool.shutdownNow();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * URL of the Sitemap Index of a site. Each site gets its own loopback
+     * address as host name, so per-host limits apply to each site separately.
+     */
+    public String getIndexUrl(int site) {
+        // 254 sites per /24, skipping the .0 and .255 addresses
+        int net = site / 254;
+        String host = "127." + ((net >> 8) & 0xff) + "." + (net & 0xff) + "." + (site % 254 + 1);
+        return "http://" + host + ":" + port + "/s/" + site + "/index.xml";
+    }
+
+    private void serve(HttpExchange exchange) throws IOException, InterruptedException {
+
+        requests.incrementAndGet();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        // /s/<site>/<name>
+        String path = exchange.getRequestURI().getPath();
+        String[] parts = path.split("/");
+        if (parts.length != 4) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        String base = "http://" + host + "/s/" + parts[2] + "/";
+        String name = parts[3];
+
+        byte[] body;
+        String contentType;
+        if (name.equals("index.xml")) {
+            body = index(base);
+            contentType = "text/xml";
+        } else if (name.startsWith("urlset-")) {
+            body = urlset(base, name);
+            contentType = "text/xml";
+        } else if (name.startsWith("text-")) {
+            body = text(base, name);
+            contentType = "text/plain";
+        } else if (name.startsWith("gz-")) {
+            body = gzip(urlset(base, name));
+            contentType = "application/x-gzip";
+        } else if (name.startsWith("rss-")) {
+            body = rss(base, name);
+            contentType = "application/rss+xml";
+        } else if (name.startsWith("atom-")) {
+            body = atom(base, name);
+            contentType = "application/atom+xml";
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        if (malformedRate > 0 && random.nextDouble() < malformedRate) {
+            body = malformed(body, contentType);
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        OutputStream out = exchange.getResponseBody();
+
+        if (dripRate == 0) {
+            exchange.sendResponseHeaders(200, body.length);
+            out.write(body);
+        } else {
+            // Chunked, a tenth of the rate every 100 ms
+            exchange.sendResponseHeaders(200, 0);
+            int chunk = Math.max(1, dripRate / 10);
+            for (int off = 0; off < body.length; off += chunk) {
+                out.write(body, off, Math.min(chunk, body.length - off));
+                out.flush();
+                Thread.sleep(100);
+            }
+        }
+        out.close();
+        bytesSent.addAndGet(body.length);
+    }
+
+    private byte[] index(String base) {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+        for (int i = 0; i < sitemapsPerIndex; i++) {
+            String kind = KINDS[i % KINDS.length];
+            String ext = kind.equals("text") ? ".txt" : kind.equals("gz") ? ".xml.gz" : ".xml";
+            sb.append("  <sitemap><loc>").append(base).append(kind).append("-").append(i).append(ext).append("</loc><lastmod>2023-06-01</lastmod></sitemap>\n");
+        }
+        sb.append("</sitemapindex>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] urlset(String base, String name) {
+
+        Random random = new Random(name.hashCode());
+        StringBuilder sb = new StringBuilder(urlsPerSitemap * 200);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+        for (int i = 0; i < urlsPerSitemap; i++) {
+            sb.append("  <url>\n    <loc>").append(page(base, name, i)).append("</loc>\n");
+            sb.append("    <lastmod>2023-").append(pad(1 + random.nextInt(12))).append("-").append(pad(1 + random.nextInt(28))).append("</lastmod>\n");
+            sb.append("    <changefreq>").append(CHANGE_FREQS[random.nextInt(CHANGE_FREQS.length)]).append("</changefreq>\n");
+            sb.append("    <priority>0.").append(random.nextInt(10)).append("</priority>\n  </url>\n");
+        }
+        sb.append("</urlset>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] text(String base, String name) {
+
+        StringBuilder sb = new StringBuilder(urlsPerSitemap * 60);
+        for (int i = 0; i < urlsPerSitemap; i++) {
+            sb.append(page(base, name, i)).append("\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] rss(String base, String name) {
+
+        StringBuilder sb = new StringBuilder(urlsPerSitemap * 80);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rss version=\"2.0\">\n<channel>\n");
+        sb.append("<title>Mock</title><link>").append(base).append("</link><pubDate>Thu, 01 Jun 2023 10:00:00 GMT</pubDate>\n");
+        for (int i = 0; i < urlsPerSitemap; i++) {
+            sb.append("<item><link>").append(page(base, name, i)).append("</link></item>\n");
+        }
+        sb.append("</channel>\n</rss>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] atom(String base, String name) {
+
+        StringBuilder sb = new StringBuilder(urlsPerSitemap * 80);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<feed xmlns=\"http://www.w3.org/2005/Atom\">\n");
+        sb.append("<title>Mock</title><modified>2023-06-01T10:00:00Z</modified>\n");
+        for (int i = 0; i < urlsPerSitemap; i++) {
+            sb.append("<entry><link href=\"").append(page(base, name, i)).append("\"/></entry>\n");
+        }
+        sb.append("</feed>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String page(String base, String name, int i) {
+        return base + "page/" + name.substring(0, name.indexOf('.')) + "/" + i + ".html";
+    }
+
+    /** Cut a document off at a random point, XML in the middle of a tag */
+    private static byte[] malformed(byte[] body, String contentType) throws IOException {
+
+        int cut = body.length / 2 + ThreadLocalRandom.current().nextInt(Math.max(1, body.length / 4));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(cut + 16);
+        out.write(body, 0, Math.min(cut, body.length));
+        if (contentType.contains("xml")) {
+            out.write("<url><loc".getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+        GZIPOutputStream gz = new GZIPOutputStream(out);
+        gz.write(body);
+        gz.close();
+        return out.toByteArray();
+    }
+
+    private static String pad(int n) {
+        return n < 10 ? "0" + n : String.valueOf(n);
+    }
+
+    /** Serve on the given port until the process is killed */
+    public static void main(String[] args) throws IOException {
+        MockSitemapServer server = new MockSitemapServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+        server.start();
+        System.out.println("Serving Sitemap Indexes at " + server.getIndexUrl(0) + " and so on");
+    }
+}
@@ -0,0 +1,206 @@
+package sitemap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A set of 128-bit hashes kept in direct memory, outside the Java heap. It
+ * uses open addressing in a number of independently locked stripes, each of
+ * which doubles when it fills up. With 128 bits of hash, two different URLs
+ * practically never collide, so the set serves as an exact membership test.
+ * Each entry takes 16 bytes and a stripe is 30% to 60% full, so count on
+ * about 40 bytes of direct memory per entry. A stripe that can't double, at
+ * its size limit or for lack of direct memory, fills up to 90% and then
+ * rejects entries, see isFull().
+ */
+public class OffHeapHashSet {
+    /** Bytes per slot, two longs */
+    private static final int SLOT = 16;
+
+    /** Grow a stripe once this fraction of its slots is used */
+    private static final double LOAD_FACTOR = 0.6;
+
+    /** A stripe that can't grow takes entries up to this fraction */
+    private static final double MAX_LOAD = 0.9;
+
+    /** Slots per stripe, 1 GB (a direct buffer can't hold more than 2 GB) */
+    private static final int MAX_SLOTS = 1 << 26;
+
+    private int maxSlots;
+
+    private Stripe[] stripes;
+
+    /** Set once a stripe couldn't grow */
+    private volatile boolean full = false;
+
+    private static class Stripe {
+        ByteBuffer table;
+        int slots;
+        int count;
+
+        /** The stripe couldn't grow, it takes entries up to MAX_LOAD */
+        boolean full;
+
+        Stripe(int slots) {
+            this.slots = slots;
+            table = ByteBuffer.allocateDirect(slots * SLOT);
+        }
+    }
+
+    /**
+     * @param expectedEntries
+     *            entries to size the stripes for up front
+     * @param concurrency
+     *            number of stripes, rounded up to a power of two
+     */
+    public OffHeapHashSet(long expectedEntries, int concurrency) {
+        this(expectedEntries, concurrency, MAX_SLOTS);
+    }
+
+    /** With a smaller size limit per stripe, for tests */
+    OffHeapHashSet(long expectedEntries, int concurrency, int maxSlots) {
+
+        this.maxSlots = maxSlots;
+        int n = concurrency <= 1 ? 1 : Integer.highestOneBit(concurrency - 1) << 1;
+        stripes = new Stripe[n];
+
+        long perStripe = (long) (expectedEntries / n / LOAD_FACTOR) + 1;
+        int slots = (int) Math.min(maxSlots, Math.max(16, Long.highestOneBit(perStripe - 1) << 1));
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe(slots);
+        }
+    }
+
+    /** Add a hash, returns true if it wasn't in the set */
+    public boolean add(long h1, long h2) {
+
+        // The empty slot is all zeros
+        if (h1 == 0 && h2 == 0) {
+            h2 = 1;
+        }
+
+        Stripe stripe = stripes[(int) (h2 >>> 32) & (stripes.length - 1)];
+        synchronized (stripe) {
+            if (stripe.full && stripe.count >= stripe.slots * MAX_LOAD && !contains(stripe, h1, h2)) {
+                throw new IllegalStateException("OffHeapHashSet stripe is full at " + stripe.count + " entries");
+            }
+
+            if (!insert(stripe.table, stripe.slots, h1, h2)) {
+                return false;
+            }
+
+            stripe.count++;
+            if (stripe.count > stripe.slots * LOAD_FACTOR && !stripe.full) {
+                grow(stripe);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * True once a stripe couldn't grow. The set still answers and takes
+     * entries for a while, but callers should stop adding to it.
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    public boolean contains(long h1, long h2) {
+
+        if (h1 == 0 && h2 == 0) {
+            h2 = 1;
+        }
+
+        Stripe stripe = stripes[(int) (h2 >>> 32) & (stripes.length - 1)];
+        synchronized (stripe) {
+            return contains(stripe, h1, h2);
+        }
+    }
+
+    private static boolean contains(Stripe stripe, long h1, long h2) {
+        int mask = stripe.slots - 1;
+        for (int i = (int) h1 & mask;; i = (i + 1) & mask) {
+            long a = stripe.table.getLong(i * SLOT);
+            long b = stripe.table.getLong(i * SLOT + 8);
+            if (a == 0 && b == 0) {
+                return false;
+            }
+            if (a == h1 && b == h2) {
+                return true;
+            }
+        }
+    }
+
+    /** Linear probing, returns false if the hash is already there */
+    private static boolean insert(ByteBuffer table, int slots, long h1, long h2) {
+
+        int mask = slots - 1;
+        for (int i = (int) h1 & mask;; i = (i + 1) & mask) {
+            long a = table.getLong(i * SLOT);
+            long b = table.getLong(i * SLOT + 8);
+            if (a == 0 && b == 0) {
+                table.putLong(i * SLOT, h1);
+                table.putLong(i * SLOT + 8, h2);
+                return true;
+            }
+            if (a == h1 && b == h2) {
+                return false;
+            }
+        }
+    }
+
+    private void grow(Stripe stripe) {
+
+        if (stripe.slots >= maxSlots) {
+            stripe.full = true;
+            full = true;
+            return;
+        }
+
+        int slots = stripe.slots * 2;
+        ByteBuffer table;
+        try {
+            table = ByteBuffer.allocateDirect(slots * SLOT);
+        } catch (OutOfMemoryError e) {
+            // Out of direct memory, -XX:MaxDirectMemorySize raises the limit
+            stripe.full = true;
+            full = true;
+            return;
+        }
+        for (int i = 0; i < stripe.slots; i++) {
+            long a = stripe.table.getLong(i * SLOT);
+            long b = stripe.table.getLong(i * SLOT + 8);
+            if (a != 0 || b != 0) {
+                insert(table, slots, a, b);
+            }
+        }
+
+        // The old buffer's memory is released once it's collected
+        stripe.table = table;
+        stripe.slots = slots;
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                size += s.count;
+            }
+        }
+        return size;
+    }
+
+    /** Direct memory used by the tables */
+    public long bytes() {
+        long bytes = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                bytes += (long) s.slots * SLOT;
+            }
+        }
+        return bytes;
+    }
+
+    public String toString() {
+        return "entries=" + size() + ",stripes=" + stripes.length + ",bytes=" + bytes();
+    }
+}
@@ -0,0 +1,221 @@
+package sitemap;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * An HttpClient shared by the SitemapParsers, with pooled keep-alive
+ * connections and a CachingDnsResolver. When a Sitemap Index is parsed, the
+ * hosts of its Sitemaps can be resolved and connected to in the background,
+ * so fetching them doesn't start with a DNS lookup and a handshake.
+ */
+public class SharedHttpClient {
+
+    /** Used by parsers that weren't given a client */
+    private static SharedHttpClient defaultClient;
+
+    private CachingDnsResolver dnsResolver;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    private CloseableHttpClient client;
+
+    /** Does the prefetching, drops work when it falls behind */
+    private ThreadPoolExecutor prefetcher;
+
+    /** Routes being warmed up right now */
+    private Set<HttpRoute> warming = ConcurrentHashMap.newKeySet();
+
+    /** Connect timeout of warm-up connections in milliseconds */
+    private int connectTimeout = 10000;
+
+    /** Keep warmed-up connections for this long in milliseconds */
+    private long keepAlive = 30000;
+
+    /** Hosts of an index that get a connection, the rest are only resolved */
+    private int maxWarmHosts = 16;
+
+    public SharedHttpClient(int maxConnections, int maxConnectionsPerHost) {
+
+        dnsResolver = new CachingDnsResolver();
+
+        Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory> create().register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", SSLConnectionSocketFactory.getSocketFactory()).build();
+
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactories, dnsResolver);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+
+        client = HttpClients.custom().setConnectionManager(connectionManager).build();
+
+        prefetcher = new ThreadPoolExecutor(4, 4, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(1000), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "connection-prefetch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        prefetcher.allowCoreThreadTimeOut(true);
+    }
+
+    public SharedHttpClient() {
+        this(200, 8);
+    }
+
+    /** The client shared by all parsers that weren't given one */
+    public static synchronized SharedHttpClient getDefault() {
+        if (defaultClient == null) {
+            defaultClient = new SharedHttpClient();
+        }
+        return defaultClient;
+    }
+
+    public CloseableHttpClient getClient() {
+        return client;
+    }
+
+    public CachingDnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    public int getMaxWarmHosts() {
+        return maxWarmHosts;
+    }
+
+    public void setMaxWarmHosts(int maxWarmHosts) {
+        if (maxWarmHosts >= 0) {
+            this.maxWarmHosts = maxWarmHosts;
+        }
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        if (connectTimeout >= 0) {
+            this.connectTimeout = connectTimeout;
+        }
+    }
+
+    /**
+     * Resolve the hosts of these URLs in the background, and open a
+     * connection to the first few of them unless the pool already has one
+     */
+    public void prefetch(Collection<URL> urls) {
+
+        Set<HttpRoute> routes = new LinkedHashSet<HttpRoute>();
+        for (URL url : urls) {
+            routes.add(getRoute(url));
+        }
+
+        int warm = 0;
+        for (final HttpRoute route : routes) {
+            if (warm++ < maxWarmHosts) {
+                warm(route);
+            } else {
+                execute(new Runnable() {
+                    public void run() {
+                        dnsResolver.prefetch(route.getTargetHost().getHostName());
+                    }
+                });
+            }
+        }
+    }
+
+    /** Open a connection to the URL's host in the background */
+    public void prefetch(URL url) {
+        warm(getRoute(url));
+    }
+
+    /** The route the client takes for a URL, so the pool finds the connection */
+    private static HttpRoute getRoute(URL url) {
+        String scheme = url.getProtocol();
+        int port = (url.getPort() > 0) ? url.getPort() : url.getDefaultPort();
+        HttpHost target = new HttpHost(url.getHost(), port, scheme);
+        return new HttpRoute(target, null, scheme.equalsIgnoreCase("https"));
+    }
+
+    private void warm(final HttpRoute route) {
+
+        if (connectionManager.getStats(route).getAvailable() > 0 || !warming.add(route)) {
+            return;
+        }
+
+        boolean queued = execute(new Runnable() {
+            public void run() {
+                try {
+                    connect(route);
+                } catch (Exception e) {
+                    // Only a head start, the real request will report errors
+                } finally {
+                    warming.remove(route);
+                }
+            }
+        });
+
+        if (!queued) {
+            warming.remove(route);
+        }
+    }
+
+    /** Prefetching is only a head start, so drop it when the queue is full */
+    private boolean execute(Runnable task) {
+        try {
+            prefetcher.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /** Connect to the route and put the open connection in the pool */
+    private void connect(HttpRoute route) throws IOException, InterruptedException, ExecutionException {
+
+        ConnectionRequest request = connectionManager.requestConnection(route, null);
+        HttpClientConnection conn = request.get(connectTimeout, TimeUnit.MILLISECONDS);
+
+        boolean reusable = false;
+        try {
+            if (!conn.isOpen()) {
+                HttpClientContext context = HttpClientContext.create();
+                connectionManager.connect(conn, route, connectTimeout, context);
+                connectionManager.routeComplete(conn, route, context);
+            }
+            reusable = true;
+        } finally {
+            if (!reusable) {
+                conn.close();
+            }
+            connectionManager.releaseConnection(conn, null, keepAlive, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void close() throws IOException {
+        prefetcher.shutdownNow();
+        client.close();
+    }
+}
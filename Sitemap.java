@@ -7,7 +7,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Date;
-import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import sitemap.Sitemap;
 import sitemap.SitemapUrl;
@@ -39,17 +39,34 @@ public class Sitemap {
     private String baseUrl;
 
     /** URL's found in this sitemap */
-    private Hashtable<String, SitemapUrl> urlList;
+    private SpillingUrlList urlList;
 
-    private static DateFormat dateFormats[] = { new SimpleDateFormat("yyyy-MM-dd"), new SimpleDateFormat("yyyy-MM-dd'T'HH:mm+hh:00"), new SimpleDateFormat("yyyy-MM-dd'T'HH:mm-hh:00"), new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss+hh:00"), new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss-hh:00"),
+    /** DateFormats aren't thread-safe, so each parsing thread gets its own */
+    private static ThreadLocal<DateFormat[]> dateFormats = new ThreadLocal<DateFormat[]>() {
+        protected DateFormat[] initialValue() {
+            return new DateFormat[] { new SimpleDateFormat("yyyy-MM-dd"), new SimpleDateFormat("yyyy-MM-dd'T'HH:mm+hh:00"), new SimpleDateFormat("yyyy-MM-dd'T'HH:mm-hh:00"), new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss+hh:00"), new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss-hh:00"),
 
-        // Accept RSS dates
-        new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz") };
+                // Accept RSS dates
+                new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz") };
+        }
+    };
+
+    /** Returned by convertToTime() for values that aren't a date */
+    public static final long NO_DATE = Long.MIN_VALUE;
+
+    /**
+     * Thousands of URLs in a Sitemap usually share a few lastmod values, so
+     * parsed dates are cached by their raw string
+     */
+    private static final int DATE_CACHE_SIZE = 10000;
 
-    public static DateFormat fullDateFormat = dateFormats[1];
+    private static ConcurrentHashMap<String, Long> dateCache = new ConcurrentHashMap<String, Long>();
+
+    /** Shared between threads, use formatDate() */
+    public static DateFormat fullDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm+hh:00");
 
     public Sitemap() {
-        urlList = new Hashtable<String, SitemapUrl>();
+        urlList = new SpillingUrlList();
         lastModified = null;
         setProcessed(false);
     }
@@ -76,8 +93,9 @@ public class Sitemap {
         setLastModified(lastModified);
     }
 
+    /** Once the list has spilled to disk, it is read back in URL order */
     public Collection<SitemapUrl> getUrlList() {
-        return urlList.values();
+        return urlList;
     }
 
     public void clearUrlList() {
@@ -121,26 +139,59 @@ public class Sitemap {
         return urlList.size();
     }
 
+    /** Number of URLs added, duplicates included */
+    public int getUrlsAdded() {
+        return urlList.getAddedCount();
+    }
+
     public String toString() {
         String s = "url=\"" + url + "\",lastMod=";
-        s += (lastModified == null) ? "null" : Sitemap.fullDateFormat.format(lastModified);
+        s += (lastModified == null) ? "null" : Sitemap.formatDate(lastModified);
         s += ",type=" + type + ",processed=" + processed + ",urlListSize=" + urlList.size();
         return s;
     }
 
     public static Date convertToDate(String date) {
 
-        if (date != null) {
-            for (DateFormat df : dateFormats) {
-                try {
-                    return df.parse(date);
-                } catch (ParseException e) {
+        long time = convertToTime(date);
+        return (time == NO_DATE) ? null : new Date(time);
+    }
+
+    /** Like convertToDate() but returns milliseconds or NO_DATE */
+    public static long convertToTime(String date) {
+
+        if (date == null) {
+            return NO_DATE;
+        }
+
+        Long cached = dateCache.get(date);
+        if (cached != null) {
+            return cached;
+        }
+
+        long time = NO_DATE;
+        for (DateFormat df : dateFormats.get()) {
+            try {
+                time = df.parse(date).getTime();
+                break;
+            } catch (ParseException e) {
 
-                }
             }
         }
 
-        return null;
+        // Crude bound, a Sitemap rarely has more distinct dates than this
+        if (dateCache.size() >= DATE_CACHE_SIZE) {
+            dateCache.clear();
+        }
+        dateCache.put(date, time);
+
+        return time;
+    }
+
+    public static String formatDate(Date date) {
+        synchronized (fullDateFormat) {
+            return fullDateFormat.format(date);
+        }
     }
 
     public void setProcessed(boolean processed) {
@@ -161,11 +212,11 @@ public class Sitemap {
     }
 
     public void addUrl(SitemapUrl url) {
-        urlList.put(url.getUrl().toString(), url);
+        urlList.add(url);
     }
 
     public void addUrl(URL url) {
-        urlList.put(url.toString(), new SitemapUrl(url));
+        urlList.add(new SitemapUrl(url));
     }
 
     public void setType(SitemapType type) {
@@ -0,0 +1,104 @@
+package sitemap;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URL;
+import java.util.EnumSet;
+
+/**
+ * Measures parse time and retained heap of a generated Sitemap.
+ *
+ * Usage: java sitemap.SitemapBenchmark [URLs] [rounds]
+ */
+public class SitemapBenchmark {
+
+    private static final String[] CHANGE_FREQS = { "daily", "weekly", "monthly", "hourly", "yearly" };
+
+    public static void main(String[] args) throws Exception {
+
+        int urls = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        File fixture = File.createTempFile("sitemap-benchmark", ".xml");
+        fixture.deleteOnExit();
+        writeFixture(fixture, urls);
+        URL url = fixture.toURI().toURL();
+
+        System.out.println("Fixture: " + urls + " URLs, " + fixture.length() + " bytes");
+
+        // The XML parser first, then the UrlsetScanner fast path on one and on all cores
+        report("XML parser", url, false, false, rounds);
+        report("Urlset scanner", url, true, false, rounds);
+        report("Urlset scanner, parallel", url, true, true, rounds);
+        report("Urlset scanner, loc only", url, true, false, rounds, EnumSet.noneOf(SitemapUrl.Field.class));
+    }
+
+    private static void report(String name, URL url, boolean fastPath, boolean parallel, int rounds) throws Exception {
+        report(name, url, fastPath, parallel, rounds, EnumSet.allOf(SitemapUrl.Field.class));
+    }
+
+    private static void report(String name, URL url, boolean fastPath, boolean parallel, int rounds, EnumSet<SitemapUrl.Field> fields) throws Exception {
+
+        // Warm up the JIT before measuring
+        for (int i = 0; i < 5; i++) {
+            parse(url, fastPath, parallel, fields);
+        }
+
+        long total = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            parse(url, fastPath, parallel, fields);
+            total += System.nanoTime() - start;
+        }
+
+        long before = usedHeap();
+        Sitemap sitemap = parse(url, fastPath, parallel, fields);
+        long after = usedHeap();
+
+        System.out.println(name + ": " + (total / rounds / 1000000) + " ms per Sitemap, retained heap " + ((after - before) / 1024) + " KB for " + sitemap.getUrlListSize() + " URLs");
+    }
+
+    private static Sitemap parse(URL url, boolean fastPath, boolean parallel, EnumSet<SitemapUrl.Field> fields) throws Exception {
+        SitemapParser parser = new SitemapParser();
+        parser.setFields(fields);
+        parser.setUrlsetFastPath(fastPath);
+        parser.setParallelThreshold(parallel ? 1 : 0);
+        parser.processSitemap(url);
+        return parser.getSitemap();
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /** A machine-generated urlset with the repetition seen in real Sitemaps */
+    private static void writeFixture(File file, int urls) throws IOException {
+
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+            for (int i = 0; i < urls; i++) {
+                out.write("  <url>\n");
+                out.write("    <loc>https://www.example.com/products/category-" + (i % 40) + "/item-" + i + ".html</loc>\n");
+                out.write("    <lastmod>2023-" + pad(1 + i % 12) + "-" + pad(1 + i % 28) + "T10:15:30+00:00</lastmod>\n");
+                out.write("    <changefreq>" + CHANGE_FREQS[i % CHANGE_FREQS.length] + "</changefreq>\n");
+                out.write("    <priority>0." + (i % 10) + "</priority>\n");
+                out.write("  </url>\n");
+            }
+            out.write("</urlset>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String pad(int n) {
+        return n < 10 ? "0" + n : String.valueOf(n);
+    }
+}
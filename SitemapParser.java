@@ -1,29 +1,45 @@
 package sitemap;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.io.StringReader;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.zip.GZIPInputStream;
 
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 
 import sitemap.Sitemap.SitemapType;
@@ -57,6 +73,71 @@ public class SitemapParser {
     /** Delay between HTTP requests in milliseconds */
     private int delayBetweenRequests = 5000;
 
+    /** Local files larger than this are memory-mapped instead of read */
+    private static final int MAP_THRESHOLD = 1024 * 1024;
+
+    /** Sitemaps only use the predefined entities, so keep expansion tight */
+    private static final String ENTITY_EXPANSION_LIMIT = "1000";
+
+    /**
+     * Creating a factory goes through a service lookup, so it's done once.
+     * The factory is hardened against external entities and DTDs.
+     */
+    private static final DocumentBuilderFactory documentBuilderFactory = newDocumentBuilderFactory();
+
+    /** DocumentBuilders aren't thread-safe, so each thread reuses its own */
+    private static final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>();
+
+    /** Resolves every external entity or DTD to nothing instead of fetching it */
+    private static final EntityResolver noExternalEntities = new EntityResolver() {
+        public InputSource resolveEntity(String publicId, String systemId) {
+            return new InputSource(new StringReader(""));
+        }
+    };
+
+    /**
+     * Local Sitemaps were stored away from the site they describe, so their
+     * URLs can't be checked against the Sitemap's location
+     */
+    private boolean checkBaseUrl = true;
+
+    /** Read plain urlsets with the UrlsetScanner instead of a DOM */
+    private boolean urlsetFastPath = true;
+
+    /**
+     * Urlsets larger than this many bytes are scanned in chunks on all cores,
+     * 0 turns it off
+     */
+    private int parallelThreshold = 4 * 1024 * 1024;
+
+    /** Size of the chunks a large urlset is split into */
+    private static final int MIN_CHUNK_SIZE = 512 * 1024;
+
+    /**
+     * Gunzipped Sitemaps up to the protocol's 50 MB, with some slack, are read
+     * into memory for the scanner. Larger ones are streamed to the XML parser,
+     * so a small .gz can't fill the heap.
+     */
+    private static final int MAX_SCAN_BYTES = SitemapWriter.MAX_BYTES + 1024 * 1024;
+
+    /** Optional fields of a <url> we decode, the URL itself always is */
+    private EnumSet<SitemapUrl.Field> fields = EnumSet.allOf(SitemapUrl.Field.class);
+
+    /** Keep the selected fields undecoded until they're first read */
+    private boolean lazyDecoding = false;
+
+    /** Retries failed requests and paces each host, optional */
+    private HostController hostController = null;
+
+    /** Drops URLs already seen in other Sitemaps, optional */
+    private UrlDeduplicator deduplicator = null;
+
+    /** Pooled connections and DNS cache, the shared default if null */
+    private SharedHttpClient httpClient = null;
+
+    /** Connect to the hosts of a Sitemap Index's Sitemaps ahead of time */
+    private boolean prefetchConnections = true;
+
     public int getDelayBetweenRequests() {
         return delayBetweenRequests;
     }
@@ -67,6 +148,75 @@ public class SitemapParser {
         }
     }
 
+    public boolean isUrlsetFastPath() {
+        return urlsetFastPath;
+    }
+
+    public void setUrlsetFastPath(boolean urlsetFastPath) {
+        this.urlsetFastPath = urlsetFastPath;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public void setParallelThreshold(int parallelThreshold) {
+        if (parallelThreshold >= 0) {
+            this.parallelThreshold = parallelThreshold;
+        }
+    }
+
+    public EnumSet<SitemapUrl.Field> getFields() {
+        return EnumSet.copyOf(fields);
+    }
+
+    /** Select the optional fields to decode, pass an empty set for URLs only */
+    public void setFields(EnumSet<SitemapUrl.Field> fields) {
+        this.fields = EnumSet.copyOf(fields);
+    }
+
+    public boolean isLazyDecoding() {
+        return lazyDecoding;
+    }
+
+    public void setLazyDecoding(boolean lazyDecoding) {
+        this.lazyDecoding = lazyDecoding;
+    }
+
+    public HostController getHostController() {
+        return hostController;
+    }
+
+    public void setHostController(HostController hostController) {
+        this.hostController = hostController;
+    }
+
+    public UrlDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    /** Share one deduplicator between parsers to drop URLs across Sitemaps */
+    public void setDeduplicator(UrlDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    /** The client used for fetching, SharedHttpClient.getDefault() unless set */
+    public SharedHttpClient getHttpClient() {
+        return (httpClient != null) ? httpClient : SharedHttpClient.getDefault();
+    }
+
+    public void setHttpClient(SharedHttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    public boolean isPrefetchConnections() {
+        return prefetchConnections;
+    }
+
+    public void setPrefetchConnections(boolean prefetchConnections) {
+        this.prefetchConnections = prefetchConnections;
+    }
+
     public SitemapParser() {
 
     }
@@ -82,52 +232,184 @@ public class SitemapParser {
         // Set so we don't try to re-process it later
         sitemap.setProcessed(true);
 
-        CloseableHttpClient client = HttpClientBuilder.create().build();
-        HttpGet request = new HttpGet(url.toString());
-        request.setHeader("User-Agent", "SitemapBot");
+        // Connect to the next Sitemap of the index while this one is fetched
+        // and parsed. Archived indexes read from files are left offline.
+        if (prefetchConnections && sitemapIndex != null && isHttp(sitemapIndex.getUrl()) && sitemapIndex.getSitemap(url) == sitemap) {
+            Sitemap next = sitemapIndex.getUnprocessedSitemap();
+            if (next != null && isHttp(next.getUrl())) {
+                getHttpClient().prefetch(next.getUrl());
+            }
+        }
+
+        checkBaseUrl = !url.getProtocol().equals("file");
+        if (!checkBaseUrl) {
+            ByteBuffer content = readFile(url);
 
-        HttpResponse response = client.execute(request);
+            CrawlEvents.Parse parse = new CrawlEvents.Parse();
+            parse.begin();
+            try {
+                processFile(url, content);
+            } finally {
+                commitParse(parse, url, content.limit());
+            }
+            return finishSitemap();
+        }
 
         // Make HTTP request for the URL after a polite delay
         if (VERBOSE)
             System.out.println("Sleeping for " + delayBetweenRequests + " milliseconds before HTTP request...");
         Thread.sleep(delayBetweenRequests);
 
-        if (response.getStatusLine().getStatusCode() != 200) {
-            String msg = "Failed to fetch Sitemap at " + url + "   HTTP response code = " + response.getStatusLine().getStatusCode();
-            throw new ProtocolException(msg);
+        CloseableHttpClient client = getHttpClient().getClient();
+        HttpGet request = new HttpGet(url.toString());
+        request.setHeader("User-Agent", "SitemapBot");
+
+        CrawlEvents.Fetch fetch = new CrawlEvents.Fetch();
+        fetch.begin();
+
+        HttpResponse response;
+        String contentType = null;
+        byte[] content = null;
+        try {
+            response = execute(client, request, url);
+            fetch.statusCode = response.getStatusLine().getStatusCode();
+
+            if (response.getStatusLine().getStatusCode() != 200) {
+                // Hand the connection back to the pool
+                EntityUtils.consume(response.getEntity());
+                String msg = "Failed to fetch Sitemap at " + url + "   HTTP response code = " + response.getStatusLine().getStatusCode();
+                throw new ProtocolException(msg);
+            }
+
+            HttpEntity entity = response.getEntity();
+            ContentType ct = null;
+            if (entity != null) {
+                ct = ContentType.get(entity);
+            }
+
+            contentType = ct.getMimeType();
+
+            if (!isXml(url, contentType) && !isText(contentType) && !isGzip(url, contentType)) {
+                EntityUtils.consume(response.getEntity());
+                throw new UnknownFormatException("Unknown format " + contentType + " at " + url);
+            }
+
+            content = EntityUtils.toByteArray(response.getEntity());
+        } finally {
+            if (fetch.shouldCommit()) {
+                fetch.url = url.toString();
+                fetch.contentType = contentType;
+                fetch.bytes = (content == null) ? 0 : content.length;
+                fetch.commit();
+            }
         }
 
-        HttpEntity entity = response.getEntity();
-        ContentType ct = null;
-        if (entity != null) {
-            ct = ContentType.get(entity);
+        CrawlEvents.Parse parse = new CrawlEvents.Parse();
+        parse.begin();
+        try {
+            // Use extension or MIME type to determine how we should try
+            // to process the response
+
+            if (isXml(url, contentType)) {
+
+                // Try parsing the XML which could be in a number of formats.
+                // The parser reads the encoding from the XML declaration.
+                processXml(url, ByteBuffer.wrap(content));
+            } else if (isText(contentType)) {
+
+                // plain text
+                processText(ByteBuffer.wrap(content));
+            } else {
+
+                // gzip
+                processGzip(url, ByteBuffer.wrap(content));
+            }
+        } finally {
+            commitParse(parse, url, content.length);
         }
 
-        String contentType = ct.getMimeType();
+        return finishSitemap();
+    }
 
-        // Use extension or MIME type to determine how we should try
-        // to process the response
+    private static boolean isXml(URL url, String contentType) {
+        return url.getPath().endsWith(".xml") || contentType.contains("text/xml") || contentType.contains("application/xml") || contentType.contains("application/x-xml") || contentType.contains("application/atom+xml") || contentType.contains("application/rss+xml");
+    }
 
-        if (url.getPath().endsWith(".xml") || contentType.contains("text/xml") || contentType.contains("application/xml") || contentType.contains("application/x-xml") || contentType.contains("application/atom+xml") || contentType.contains("application/rss+xml")) {
+    private static boolean isText(String contentType) {
+        return contentType.contains("text/plain");
+    }
 
-            // Try parsing the XML which could be in a number of formats
-            String content = EntityUtils.toString(response.getEntity());
-            processXml(url, content);
-        } else if (contentType.contains("text/plain")) {
+    private static boolean isGzip(URL url, String contentType) {
+        return url.getPath().endsWith(".gz") || contentType.contains("application/gzip") || contentType.contains("application/x-gzip") || contentType.contains("application/x-gunzip") || contentType.contains("application/gzipped") || contentType.contains("application/gzip-compressed") || contentType.contains("application/x-compress") || contentType.contains("gzip/document") || contentType.contains("application/octet-stream");
+    }
 
-            // plain text
-            String content = EntityUtils.toString(response.getEntity());
-            processText(content);
-        } else if (url.getPath().endsWith(".gz") || contentType.contains("application/gzip") || contentType.contains("application/x-gzip") || contentType.contains("application/x-gunzip") || contentType.contains("application/gzipped") || contentType.contains("application/gzip-compressed") || contentType.contains("application/x-compress") || contentType.contains("gzip/document") || contentType.contains("application/octet-stream")) {
+    private void commitParse(CrawlEvents.Parse parse, URL url, long bytes) {
+        if (parse.shouldCommit()) {
+            parse.url = url.toString();
+            parse.bytes = bytes;
+            if (sitemap != null) {
+                parse.type = String.valueOf(sitemap.getType());
+                parse.urls = (sitemap.getType() == SitemapType.INDEX) ? sitemapIndex.getSitemapListSize() : sitemap.getUrlsAdded();
+            }
+            parse.commit();
+        }
+    }
 
-            // gzip
-            String content = EntityUtils.toString(response.getEntity());
-            processGzip(url, content.getBytes());
-        } else {
-            throw new UnknownFormatException("Unknown format " + contentType + " at " + url);
+    /**
+     * Execute the request, going through the HostController if there is one.
+     * Retryable failures are retried until the controller gives up, after that
+     * the last response is returned.
+     */
+    private HttpResponse execute(CloseableHttpClient client, HttpGet request, URL url) throws IOException, ProtocolException, InterruptedException {
+
+        if (hostController == null) {
+            return client.execute(request);
         }
 
+        String host = url.getHost();
+
+        for (int retry = 0;; retry++) {
+            hostController.acquire(host);
+
+            long start = System.currentTimeMillis();
+            HttpResponse response = null;
+            int statusCode = -1;
+            try {
+                response = client.execute(request);
+                statusCode = response.getStatusLine().getStatusCode();
+            } catch (IOException e) {
+                if (retry >= hostController.getMaxRetries()) {
+                    throw e;
+                }
+                if (VERBOSE)
+                    System.out.println("Failed to fetch " + url + ": " + e.getMessage());
+            } finally {
+                hostController.release(host, System.currentTimeMillis() - start, statusCode);
+            }
+
+            if (response != null && (!hostController.isRetryable(statusCode) || retry >= hostController.getMaxRetries())) {
+                return response;
+            }
+
+            String retryAfter = null;
+            if (response != null) {
+                if (response.getFirstHeader("Retry-After") != null) {
+                    retryAfter = response.getFirstHeader("Retry-After").getValue();
+                }
+                EntityUtils.consume(response.getEntity());
+            }
+
+            // Hold back every request to this host, not just this one
+            long backoff = hostController.getBackoff(retry, retryAfter);
+            hostController.delay(host, backoff);
+
+            if (VERBOSE)
+                System.out.println("Retrying " + url + " in " + backoff + " milliseconds (HTTP response code = " + statusCode + ")");
+        }
+    }
+
+    private SitemapType finishSitemap() {
+
         SitemapType type = sitemap.getType();
         if (type == SitemapType.INDEX) {
             // A Sitemap Index contains Sitemaps but is not a Sitemap
@@ -143,11 +425,159 @@ public class SitemapParser {
         return processSitemap(sitemap);
     }
 
-    private void processXml(URL sitemapUrl, String xmlContent) throws UnknownFormatException {
+    private void processXml(URL sitemapUrl, ByteBuffer xmlContent) throws UnknownFormatException {
+
+        if (urlsetFastPath && scanUrlset(xmlContent)) {
+            return;
+        }
+
+        processXml(sitemapUrl, new InputSource(new ByteBufferInputStream(xmlContent)));
+    }
+
+    /**
+     * Try reading a plain urlset with the UrlsetScanner. Returns false without
+     * touching the Sitemap if the document needs the XML parser.
+     */
+    private boolean scanUrlset(ByteBuffer xmlContent) {
+
+        UrlsetScanner scanner = new UrlsetScanner(xmlContent, fields);
+
+        int start = scanner.findUrlset();
+        List<SitemapUrl> urls = null;
+
+        if (start >= 0 && parallelThreshold > 0 && xmlContent.limit() - start > parallelThreshold) {
+            urls = scanParallel(xmlContent, scanner.split(start, chunks(xmlContent.limit() - start)));
+        }
+
+        if (urls == null && start >= 0) {
+            List<UrlsetScanner.Entry> entries = new ArrayList<UrlsetScanner.Entry>();
+            if (scanner.scan(start, xmlContent.limit(), entries, MAX_URLS)) {
+                urls = newXmlUrls(entries);
+            }
+        }
+
+        if (urls == null) {
+            if (DEBUG)
+                System.out.println("Not a plain urlset, using the XML parser");
+            return false;
+        }
+
+        sitemap.setType(SitemapType.XML);
+
+        // Add in document order, entries that were rejected are null
+        int i = 0;
+        for (SitemapUrl sUrl : urls) {
+            i++;
+            if (sUrl != null && isNewUrl(sUrl.getUrl())) {
+                sitemap.addUrl(sUrl);
+                if (VERBOSE)
+                    System.out.println("  " + i + ". " + sUrl);
+            }
+        }
+
+        return true;
+    }
+
+    private static int chunks(int size) {
+        int parallelism = ForkJoinPool.commonPool().getParallelism();
+        return Math.max(1, Math.min(parallelism * 4, size / MIN_CHUNK_SIZE));
+    }
+
+    /**
+     * Scan and convert the chunks between the boundaries with fork/join, the
+     * first MAX_URLS entries in document order. Returns null if a chunk
+     * couldn't be scanned, for instance because a cut landed inside a
+     * comment.
+     */
+    private List<SitemapUrl> scanParallel(ByteBuffer xmlContent, int[] bounds) {
+
+        if (DEBUG)
+            System.out.println("Scanning urlset in " + (bounds.length - 1) + " chunks");
+
+        int n = bounds.length - 1;
+        List<List<UrlsetScanner.Entry>> entries = new ArrayList<List<UrlsetScanner.Entry>>();
+        List<List<SitemapUrl>> chunks = new ArrayList<List<SitemapUrl>>();
+        for (int i = 0; i < n; i++) {
+            entries.add(null);
+            chunks.add(null);
+        }
+
+        if (!ForkJoinPool.commonPool().invoke(new ChunkTask(xmlContent, bounds, 0, n, entries, null))) {
+            return null;
+        }
+
+        // No chunk read more than MAX_URLS entries, drop the ones beyond
+        // MAX_URLS of the whole document before converting
+        int left = MAX_URLS;
+        for (List<UrlsetScanner.Entry> chunk : entries) {
+            if (chunk.size() > left) {
+                chunk.subList(left, chunk.size()).clear();
+            }
+            left -= chunk.size();
+        }
+
+        ForkJoinPool.commonPool().invoke(new ChunkTask(xmlContent, bounds, 0, n, entries, chunks));
+
+        List<SitemapUrl> urls = new ArrayList<SitemapUrl>();
+        for (List<SitemapUrl> chunk : chunks) {
+            urls.addAll(chunk);
+        }
+        return urls;
+    }
+
+    /**
+     * Scans the chunks from lo to hi into their entries, or converts their
+     * entries if there are chunks for the URLs, splitting the range in halves
+     */
+    @SuppressWarnings("serial")
+    private class ChunkTask extends RecursiveTask<Boolean> {
+        private ByteBuffer xmlContent;
+        private int[] bounds;
+        private int lo;
+        private int hi;
+        private List<List<UrlsetScanner.Entry>> entries;
+        private List<List<SitemapUrl>> chunks;
+
+        ChunkTask(ByteBuffer xmlContent, int[] bounds, int lo, int hi, List<List<UrlsetScanner.Entry>> entries, List<List<SitemapUrl>> chunks) {
+            this.xmlContent = xmlContent;
+            this.bounds = bounds;
+            this.lo = lo;
+            this.hi = hi;
+            this.entries = entries;
+            this.chunks = chunks;
+        }
+
+        protected Boolean compute() {
+
+            if (hi - lo == 1) {
+                if (chunks != null) {
+                    chunks.set(lo, newXmlUrls(entries.get(lo)));
+                    return true;
+                }
+
+                List<UrlsetScanner.Entry> scanned = new ArrayList<UrlsetScanner.Entry>();
+                if (!new UrlsetScanner(xmlContent, fields).scan(bounds[lo], bounds[hi], scanned, MAX_URLS)) {
+                    return false;
+                }
+                entries.set(lo, scanned);
+                return true;
+            }
+
+            int mid = (lo + hi) >>> 1;
+            ChunkTask left = new ChunkTask(xmlContent, bounds, lo, mid, entries, chunks);
+            left.fork();
+            boolean right = new ChunkTask(xmlContent, bounds, mid, hi, entries, chunks).compute();
+            return left.join() && right;
+        }
+    }
+
+    private List<SitemapUrl> newXmlUrls(List<UrlsetScanner.Entry> entries) {
 
-        InputSource is = new InputSource();
-        is.setCharacterStream(new StringReader(xmlContent));
-        processXml(sitemapUrl, is);
+        List<SitemapUrl> urls = new ArrayList<SitemapUrl>(entries.size());
+        for (UrlsetScanner.Entry entry : entries) {
+            urls.add(newXmlUrl(entry.loc, entry.lastMod, entry.changeFreq, entry.priority));
+        }
+        return urls;
     }
 
     private void processXml(URL sitemapUrl, InputSource is) throws UnknownFormatException {
@@ -155,8 +585,7 @@ public class SitemapParser {
         Document doc = null;
 
         try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            doc = dbf.newDocumentBuilder().parse(is);
+            doc = getDocumentBuilder().parse(is);
         } catch (Exception e) {
             throw new UnknownFormatException("Error parsing XML for " + sitemapUrl);
         }
@@ -177,6 +606,57 @@ public class SitemapParser {
         }
     }
 
+    private static DocumentBuilderFactory newDocumentBuilderFactory() {
+
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setXIncludeAware(false);
+
+        // Not every JAXP implementation knows all of these, so apply what we can.
+        // DOCTYPEs stay allowed because old RSS feeds declare one.
+        setFeature(dbf, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        setFeature(dbf, "http://xml.org/sax/features/external-general-entities", false);
+        setFeature(dbf, "http://xml.org/sax/features/external-parameter-entities", false);
+        setFeature(dbf, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        setAttribute(dbf, XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        setAttribute(dbf, XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+        setAttribute(dbf, "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit", ENTITY_EXPANSION_LIMIT);
+
+        return dbf;
+    }
+
+    private static void setFeature(DocumentBuilderFactory dbf, String feature, boolean value) {
+        try {
+            dbf.setFeature(feature, value);
+        } catch (ParserConfigurationException e) {
+            // Not supported by this implementation
+        }
+    }
+
+    private static void setAttribute(DocumentBuilderFactory dbf, String name, String value) {
+        try {
+            dbf.setAttribute(name, value);
+        } catch (IllegalArgumentException e) {
+            // Not supported by this implementation
+        }
+    }
+
+    private static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+
+        DocumentBuilder db = documentBuilders.get();
+        if (db == null) {
+            synchronized (documentBuilderFactory) {
+                db = documentBuilderFactory.newDocumentBuilder();
+            }
+            documentBuilders.set(db);
+        } else {
+            db.reset();
+        }
+
+        // reset() drops the resolver, so set it every time
+        db.setEntityResolver(noExternalEntities);
+        return db;
+    }
+
     private void parseXmlSitemap(Document doc) {
 
         sitemap.setType(SitemapType.XML);
@@ -184,37 +664,64 @@ public class SitemapParser {
         NodeList list = doc.getElementsByTagName("url");
 
         // Loop through the <url>s
-        for (int i = 0; i < list.getLength(); i++) {
+        for (int i = 0; i < list.getLength() && i < MAX_URLS; i++) {
 
             Node n = list.item(i);
 
             if (n.getNodeType() == Node.ELEMENT_NODE) {
                 Element elem = (Element) n;
 
+                // Each lookup walks the element, so only do the ones we need
                 String loc = getElementValue(elem, "loc");
+                String lastMod = getFieldValue(elem, SitemapUrl.Field.LAST_MODIFIED);
+                String changeFreq = getFieldValue(elem, SitemapUrl.Field.CHANGE_FREQUENCY);
+                String priority = getFieldValue(elem, SitemapUrl.Field.PRIORITY);
 
-                URL url = null;
-                try {
-                    url = new URL(loc);
-                    String lastMod = getElementValue(elem, "lastmod");
-                    String changeFreq = getElementValue(elem, "changefreq");
-                    String priority = getElementValue(elem, "priority");
+                addXmlUrl(i + 1, loc, lastMod, changeFreq, priority);
+            }
+        }
+    }
 
-                    if (urlIsLegal(sitemap.getBaseUrl(), url.toString())) {
-                        SitemapUrl sUrl = new SitemapUrl(url.toString(), lastMod, changeFreq, priority);
-                        sitemap.addUrl(sUrl);
-                        if (VERBOSE)
-                            System.out.println("  " + (i + 1) + ". " + sUrl);
-                    }
-                } catch (MalformedURLException e) {
-                    // e.printStackTrace();
+    /** False if the deduplicator has seen the URL in this or another Sitemap */
+    private boolean isNewUrl(URL url) {
+        return deduplicator == null || deduplicator.add(url.toString());
+    }
 
-                    // Can't create an entry with a bad URL
-                    if (DEBUG)
-                        System.out.println("Bad url: [" + loc + "]");
+    /** Add the i-th <url> of an XML Sitemap */
+    private void addXmlUrl(int i, String loc, String lastMod, String changeFreq, String priority) {
+
+        SitemapUrl sUrl = newXmlUrl(loc, lastMod, changeFreq, priority);
+        if (sUrl != null && isNewUrl(sUrl.getUrl())) {
+            sitemap.addUrl(sUrl);
+            if (VERBOSE)
+                System.out.println("  " + i + ". " + sUrl);
+        }
+    }
+
+    /**
+     * Create the SitemapUrl for a <url>, null if its URL is bad or belongs
+     * elsewhere. Safe to call from several threads.
+     */
+    private SitemapUrl newXmlUrl(String loc, String lastMod, String changeFreq, String priority) {
+
+        try {
+            URL url = UrlInterner.newUrl(loc);
+
+            if (urlIsLegal(sitemap.getBaseUrl(), loc)) {
+                if (lazyDecoding) {
+                    return SitemapUrl.withRawValues(url, lastMod, changeFreq, priority);
                 }
+                return new SitemapUrl(url, lastMod, changeFreq, priority);
             }
+        } catch (MalformedURLException e) {
+            // e.printStackTrace();
+
+            // Can't create an entry with a bad URL
+            if (DEBUG)
+                System.out.println("Bad url: [" + loc + "]");
         }
+
+        return null;
     }
 
     private void parseSitemapIndex(URL url, NodeList nodeList) {
@@ -260,6 +767,21 @@ public class SitemapParser {
                 }
             }
         }
+
+        // Resolve and connect to the hosts while the first Sitemap is fetched
+        if (prefetchConnections && isHttp(url)) {
+            List<URL> urls = new ArrayList<URL>();
+            for (Sitemap s : sitemapIndex.getSitemapList()) {
+                if (isHttp(s.getUrl())) {
+                    urls.add(s.getUrl());
+                }
+            }
+            getHttpClient().prefetch(urls);
+        }
+    }
+
+    private static boolean isHttp(URL url) {
+        return url.getProtocol().equals("http") || url.getProtocol().equals("https");
     }
 
     private void parseSyndicationFormat(URL sitemapUrl, Document doc) throws UnknownFormatException {
@@ -290,7 +812,7 @@ public class SitemapParser {
         if (DEBUG)
             System.out.println("Parsing Atom XML");
 
-        String lastMod = getElementValue(elem, "modified");
+        String lastMod = fields.contains(SitemapUrl.Field.LAST_MODIFIED) ? getElementValue(elem, "modified") : null;
         if (DEBUG)
             System.out.println("lastMod=" + lastMod);
 
@@ -310,10 +832,10 @@ public class SitemapParser {
 
                 URL url = null;
                 try {
-                    url = new URL(href);
+                    url = UrlInterner.newUrl(href);
 
-                    if (urlIsLegal(sitemap.getBaseUrl(), url.toString())) {
-                        SitemapUrl sUrl = new SitemapUrl(url.toString(), lastMod, null, null);
+                    if (urlIsLegal(sitemap.getBaseUrl(), href) && isNewUrl(url)) {
+                        SitemapUrl sUrl = new SitemapUrl(url, lastMod, null, null);
                         sitemap.addUrl(sUrl);
                         if (VERBOSE)
                             System.out.println("  " + (i + 1) + ". " + sUrl);
@@ -340,7 +862,7 @@ public class SitemapParser {
         Element elem = (Element) list.item(0);
 
         // Treat publication date as last mod (Tue, 10 Jun 2003 04:00:00 GMT)
-        String lastMod = getElementValue(elem, "pubDate");
+        String lastMod = fields.contains(SitemapUrl.Field.LAST_MODIFIED) ? getElementValue(elem, "pubDate") : null;
 
         if (DEBUG)
             System.out.println("lastMod=" + lastMod);
@@ -360,10 +882,10 @@ public class SitemapParser {
                     System.out.println("link=" + link);
 
                 try {
-                    URL url = new URL(link);
+                    URL url = UrlInterner.newUrl(link);
 
-                    if (urlIsLegal(sitemap.getBaseUrl(), url.toString())) {
-                        SitemapUrl sUrl = new SitemapUrl(url.toString(), lastMod, null, null);
+                    if (urlIsLegal(sitemap.getBaseUrl(), link) && isNewUrl(url)) {
+                        SitemapUrl sUrl = new SitemapUrl(url, lastMod, null, null);
                         sitemap.addUrl(sUrl);
                         if (VERBOSE)
                             System.out.println("  " + (i + 1) + ". " + sUrl);
@@ -391,6 +913,10 @@ public class SitemapParser {
         return null;
     }
 
+    private String getFieldValue(Element elem, SitemapUrl.Field field) {
+        return fields.contains(field) ? getElementValue(elem, field.getElement()) : null;
+    }
+
     private String getElementAttributeValue(Element elem, String elementName, String attributeName) {
 
         NodeList list = elem.getElementsByTagName(elementName);
@@ -402,42 +928,118 @@ public class SitemapParser {
         return null;
     }
 
-    private void processText(String content) throws IOException {
+    /**
+     * Scan a plain text Sitemap line by line without decoding it first. Lines
+     * are validated in place and only accepted URLs are turned into Strings.
+     */
+    private void processText(ByteBuffer content) {
 
         if (DEBUG)
             System.out.println("Processing textual Sitemap");
 
         sitemap.setType(SitemapType.TEXT);
 
-        BufferedReader reader = new BufferedReader(new StringReader(content));
+        byte[] baseUrl = sitemap.getBaseUrl().getBytes(StandardCharsets.UTF_8);
 
-        String line;
+        int pos = content.position();
+        int end = content.limit();
+
+        // Skip the UTF-8 byte order mark
+        if (end - pos >= 3 && content.get(pos) == (byte) 0xEF && content.get(pos + 1) == (byte) 0xBB && content.get(pos + 2) == (byte) 0xBF) {
+            pos += 3;
+        }
 
         int i = 1;
-        while ((line = reader.readLine()) != null) {
-            if (line.length() > 0 && i <= MAX_URLS) {
-                try {
-                    URL url = new URL(line);
-                    if (urlIsLegal(sitemap.getBaseUrl(), url.toString())) {
-                        if (VERBOSE)
-                            System.out.println("  " + i + ". " + url);
-                        i++;
-                        sitemap.addUrl(url);
-                    }
-                } catch (MalformedURLException e) {
+        while (pos < end && i <= MAX_URLS) {
+
+            int eol = pos;
+            while (eol < end && content.get(eol) != '\n') {
+                eol++;
+            }
+
+            // Trim surrounding whitespace, including the \r of a CRLF
+            int start = pos;
+            int stop = eol;
+            while (start < stop && isWhitespace(content.get(start))) {
+                start++;
+            }
+            while (stop > start && isWhitespace(content.get(stop - 1))) {
+                stop--;
+            }
+
+            if (start < stop) {
+                if (!isUrl(content, start, stop)) {
                     if (DEBUG)
-                        System.out.println("Bad URL [" + line + "].");
+                        System.out.println("Bad URL [" + decode(content, start, stop) + "].");
+                } else if (urlIsLegal(baseUrl, content, start, stop)) {
+                    String line = decode(content, start, stop);
+                    try {
+                        URL url = UrlInterner.newUrl(line);
+                        if (isNewUrl(url)) {
+                            if (VERBOSE)
+                                System.out.println("  " + i + ". " + url);
+                            i++;
+                            sitemap.addUrl(url);
+                        }
+                    } catch (MalformedURLException e) {
+                        if (DEBUG)
+                            System.out.println("Bad URL [" + line + "].");
+                    }
                 }
             }
+
+            pos = eol + 1;
         }
     }
 
-    private void processGzip(URL url, byte[] response) throws MalformedURLException, IOException, UnknownFormatException {
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f';
+    }
+
+    /** A URL needs a scheme and may not contain whitespace or control characters */
+    private static boolean isUrl(ByteBuffer content, int start, int stop) {
+
+        int i = start;
+        while (i < stop && isSchemeChar(content.get(i))) {
+            i++;
+        }
+        if (i == start || stop - i < 4 || content.get(i) != ':' || content.get(i + 1) != '/' || content.get(i + 2) != '/') {
+            return false;
+        }
+
+        for (i += 3; i < stop; i++) {
+            byte b = content.get(i);
+            if ((b >= 0 && b <= ' ') || b == 0x7F) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isSchemeChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '+' || b == '-' || b == '.';
+    }
+
+    private static String decode(ByteBuffer content, int start, int stop) {
+
+        if (content.hasArray()) {
+            return new String(content.array(), content.arrayOffset() + start, stop - start, StandardCharsets.UTF_8);
+        }
+
+        byte[] bytes = new byte[stop - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = content.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void processGzip(URL url, ByteBuffer response) throws MalformedURLException, IOException, UnknownFormatException {
 
         if (DEBUG)
             System.out.println("Processing gzip");
 
-        InputStream is = new ByteArrayInputStream(response);
+        InputStream is = new ByteBufferInputStream(response);
 
         // Remove .gz ending
         String xmlUrl = url.toString().replaceFirst("\\.gz$", "");
@@ -446,14 +1048,129 @@ public class SitemapParser {
             System.out.println("XML url = " + xmlUrl);
 
         InputStream decompressed = new GZIPInputStream(is);
-        InputSource in = new InputSource(decompressed);
-        in.setSystemId(xmlUrl);
-        processXml(url, in);
-        decompressed.close();
+        try {
+            if (urlsetFastPath) {
+                // The scanner needs the whole document
+                CrawlEvents.Decompress event = new CrawlEvents.Decompress();
+                event.begin();
+                ByteArrayOutputStream xml = readAll(decompressed, MAX_SCAN_BYTES);
+                if (event.shouldCommit()) {
+                    event.url = url.toString();
+                    event.compressedBytes = response.limit();
+                    event.bytes = xml.size();
+                    event.commit();
+                }
+
+                if (xml.size() <= MAX_SCAN_BYTES) {
+                    processXml(url, ByteBuffer.wrap(xml.toByteArray()));
+                } else {
+                    if (DEBUG)
+                        System.out.println("Gunzipped Sitemap too large to scan, using the XML parser");
+
+                    // Parse what was read and stream the rest
+                    InputStream rest = new SequenceInputStream(new ByteArrayInputStream(xml.toByteArray()), decompressed);
+                    xml = null;
+                    InputSource in = new InputSource(rest);
+                    in.setSystemId(xmlUrl);
+                    processXml(url, in);
+                }
+            } else {
+                InputSource in = new InputSource(decompressed);
+                in.setSystemId(xmlUrl);
+                processXml(url, in);
+            }
+        } finally {
+            decompressed.close();
+        }
+    }
+
+    /** Read the stream until its end or until more than limit bytes were read */
+    private static ByteArrayOutputStream readAll(InputStream in, int limit) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while (out.size() <= limit && (n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out;
+    }
+
+    /**
+     * Process a Sitemap stored in a local file. The format is taken from the
+     * file extension or, failing that, from the first bytes of the file.
+     */
+    private void processFile(URL url, ByteBuffer content) throws UnknownFormatException, IOException {
+
+        String name = url.getPath().toLowerCase();
+
+        if (name.endsWith(".gz") || isGzip(content)) {
+            processGzip(url, content);
+        } else if (name.endsWith(".xml") || isMarkup(content)) {
+            processXml(url, content);
+        } else {
+            processText(content);
+        }
+    }
+
+    private static ByteBuffer readFile(URL url) throws IOException {
+        try {
+            return readFile(Paths.get(url.toURI()));
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Bad file URL " + url, e);
+        }
+    }
+
+    /** Map large files into memory and read small ones into a heap buffer */
+    static ByteBuffer readFile(Path path) throws IOException {
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + path);
+            }
+
+            if (size > MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static boolean isGzip(ByteBuffer content) {
+        int pos = content.position();
+        return content.limit() - pos >= 2 && content.get(pos) == (byte) 0x1F && content.get(pos + 1) == (byte) 0x8B;
+    }
+
+    /** Does the content start with a tag after an optional BOM and whitespace? */
+    private static boolean isMarkup(ByteBuffer content) {
+
+        int pos = content.position();
+        int end = content.limit();
+
+        if (end - pos >= 3 && content.get(pos) == (byte) 0xEF && content.get(pos + 1) == (byte) 0xBB && content.get(pos + 2) == (byte) 0xBF) {
+            pos += 3;
+        }
+        while (pos < end && isWhitespace(content.get(pos))) {
+            pos++;
+        }
+
+        return pos < end && content.get(pos) == '<';
     }
 
     private boolean urlIsLegal(String sitemapBaseUrl, String testUrl) {
 
+        if (!checkBaseUrl)
+            return true;
+
         boolean ret = false;
 
         // Don't try a comparison if the URL is too short to match
@@ -469,6 +1186,35 @@ public class SitemapParser {
         return ret;
     }
 
+    /** Same as urlIsLegal(String, String) but on the raw bytes of a URL */
+    private boolean urlIsLegal(byte[] sitemapBaseUrl, ByteBuffer content, int start, int stop) {
+
+        if (!checkBaseUrl)
+            return true;
+
+        boolean ret = false;
+
+        if (sitemapBaseUrl.length <= stop - start) {
+            ret = true;
+            for (int i = 0; i < sitemapBaseUrl.length; i++) {
+                byte b = content.get(start + i);
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != sitemapBaseUrl[i]) {
+                    ret = false;
+                    break;
+                }
+            }
+        }
+
+        if (DEBUG) {
+            System.out.println("urlIsLegal: " + new String(sitemapBaseUrl, StandardCharsets.UTF_8) + " <= " + decode(content, start, stop) + " ? " + ret);
+        }
+
+        return ret;
+    }
+
     public Sitemap getSitemap() {
         return sitemap;
     }
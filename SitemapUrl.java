@@ -13,14 +13,66 @@ public class SitemapUrl {
 
     /** Allowed change frequencies */
     public enum ChangeFrequency {
-        ALWAYS, HOURLY, DAILY, WEEKLY, MONTHLY, YEARLY, NEVER
+        ALWAYS, HOURLY, DAILY, WEEKLY, MONTHLY, YEARLY, NEVER;
+
+        private static final ChangeFrequency[] VALUES = values();
+
+        /** The constant for a changefreq value, null if there is none */
+        public static ChangeFrequency parse(String changeFreq) {
+
+            if (changeFreq == null) {
+                return null;
+            }
+
+            changeFreq = changeFreq.trim();
+            for (ChangeFrequency f : VALUES) {
+                if (f.name().equalsIgnoreCase(changeFreq)) {
+                    return f;
+                }
+            }
+
+            // Be lenient with values like "updated daily"
+            changeFreq = changeFreq.toUpperCase();
+            for (ChangeFrequency f : VALUES) {
+                if (changeFreq.contains(f.name())) {
+                    return f;
+                }
+            }
+
+            return null;
+        }
+    };
+
+    /** Optional fields of a URL, named by their Sitemap element */
+    public enum Field {
+        LAST_MODIFIED("lastmod"), CHANGE_FREQUENCY("changefreq"), PRIORITY("priority");
+
+        private String element;
+
+        private Field(String element) {
+            this.element = element;
+        }
+
+        public String getElement() {
+            return element;
+        }
+
+        /** The field for an element name, null if there is none */
+        public static Field forElement(String element) {
+            for (Field f : values()) {
+                if (f.element.equalsIgnoreCase(element)) {
+                    return f;
+                }
+            }
+            return null;
+        }
     };
 
     /** URL found in Sitemap (required) */
     private URL url;
 
-    /** When URL was last modified (optional) */
-    private Date lastModified;
+    /** When URL was last modified in milliseconds or Sitemap.NO_DATE (optional) */
+    private long lastModified = Sitemap.NO_DATE;
 
     /** How often the URL changes (optional) */
     private ChangeFrequency changeFreq;
@@ -28,6 +80,16 @@ public class SitemapUrl {
     /** Value between [0.0 - 1.0] (optional) */
     private double priority;
 
+    /**
+     * Values as found in the Sitemap that haven't been decoded yet. They're
+     * decoded and cleared on first access.
+     */
+    private volatile String rawLastModified;
+
+    private volatile String rawChangeFreq;
+
+    private volatile String rawPriority;
+
     public SitemapUrl(String url) {
         setUrl(url);
     }
@@ -44,6 +106,14 @@ public class SitemapUrl {
         setPriority(priority);
     }
 
+    public SitemapUrl(URL url, String lastModified, String changeFreq, String priority) {
+
+        setUrl(url);
+        setLastModified(lastModified);
+        setChangeFrequency(changeFreq);
+        setPriority(priority);
+    }
+
     public SitemapUrl(URL url, Date lastModified, ChangeFrequency changeFreq, double priority) {
 
         setUrl(url);
@@ -52,6 +122,19 @@ public class SitemapUrl {
         setPriority(priority);
     }
 
+    /**
+     * A SitemapUrl that keeps the optional values undecoded until they're
+     * read, for crawls that mostly only look at the URL
+     */
+    public static SitemapUrl withRawValues(URL url, String lastModified, String changeFreq, String priority) {
+
+        SitemapUrl sUrl = new SitemapUrl(url);
+        sUrl.rawLastModified = lastModified;
+        sUrl.rawChangeFreq = changeFreq;
+        sUrl.rawPriority = priority;
+        return sUrl;
+    }
+
     public URL getUrl() {
         return url;
     }
@@ -71,18 +154,34 @@ public class SitemapUrl {
     }
 
     public Date getLastModified() {
+        long time = getLastModifiedTime();
+        return (time == Sitemap.NO_DATE) ? null : new Date(time);
+    }
+
+    /** When the URL was last modified in milliseconds or Sitemap.NO_DATE */
+    public long getLastModifiedTime() {
+        String raw = rawLastModified;
+        if (raw != null) {
+            setLastModified(raw);
+        }
         return lastModified;
     }
 
     public void setLastModified(String lastModified) {
-        this.lastModified = Sitemap.convertToDate(lastModified);
+        this.lastModified = Sitemap.convertToTime(lastModified);
+        rawLastModified = null;
     }
 
     public void setLastModified(Date lastModified) {
-        this.lastModified = lastModified;
+        this.lastModified = (lastModified == null) ? Sitemap.NO_DATE : lastModified.getTime();
+        rawLastModified = null;
     }
 
     public double getPriority() {
+        String raw = rawPriority;
+        if (raw != null) {
+            setPriority(raw);
+        }
         return priority;
     }
 
@@ -93,6 +192,7 @@ public class SitemapUrl {
         } else {
             this.priority = priority;
         }
+        rawPriority = null;
     }
 
     public void setPriority(String priority) {
@@ -109,44 +209,32 @@ public class SitemapUrl {
     }
 
     public ChangeFrequency getChangeFrequency() {
+        String raw = rawChangeFreq;
+        if (raw != null) {
+            setChangeFrequency(raw);
+        }
         return changeFreq;
     }
 
     public void setChangeFrequency(ChangeFrequency changeFreq) {
         this.changeFreq = changeFreq;
+        rawChangeFreq = null;
     }
 
     public void setChangeFrequency(String changeFreq) {
 
         if (changeFreq != null) {
-            changeFreq = changeFreq.toUpperCase();
-
-            if (changeFreq.contains("ALWAYS")) {
-                this.changeFreq = ChangeFrequency.ALWAYS;
-            } else if (changeFreq.contains("HOURLY")) {
-                this.changeFreq = ChangeFrequency.HOURLY;
-            } else if (changeFreq.contains("DAILY")) {
-                this.changeFreq = ChangeFrequency.DAILY;
-            } else if (changeFreq.contains("WEEKLY")) {
-                this.changeFreq = ChangeFrequency.WEEKLY;
-            } else if (changeFreq.contains("MONTHLY")) {
-                this.changeFreq = ChangeFrequency.MONTHLY;
-            } else if (changeFreq.contains("YEARLY")) {
-                this.changeFreq = ChangeFrequency.YEARLY;
-            } else if (changeFreq.contains("NEVER")) {
-                this.changeFreq = ChangeFrequency.NEVER;
-            } else {
-                this.changeFreq = null;
-            }
+            this.changeFreq = ChangeFrequency.parse(changeFreq);
         }
+        rawChangeFreq = null;
     }
 
     public String toString() {
         String s = "url=\"" + url + "\",";
         s += "lastMod=";
-        s += (lastModified == null) ? "null" : Sitemap.fullDateFormat.format(lastModified);
-        s += ",changeFreq=" + changeFreq;
-        s += ",priority=" + priority;
+        s += (getLastModifiedTime() == Sitemap.NO_DATE) ? "null" : Sitemap.formatDate(getLastModified());
+        s += ",changeFreq=" + getChangeFrequency();
+        s += ",priority=" + getPriority();
         return s;
     }
 
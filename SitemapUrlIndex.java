@@ -0,0 +1,207 @@
+package sitemap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Orders SitemapUrls for refreshing. URLs are kept in buckets by the day they
+ * were last modified, so the newest URLs and the ones changed since a point in
+ * time come out bucket by bucket, without sorting the whole list. URLs
+ * without a date go in a bucket of their own that comes last. Not safe for
+ * concurrent use.
+ */
+public class SitemapUrlIndex implements Iterable<SitemapUrl> {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    /** Most recently modified first, URLs without a date last */
+    public static final Comparator<SitemapUrl> BY_LAST_MODIFIED = new Comparator<SitemapUrl>() {
+        public int compare(SitemapUrl a, SitemapUrl b) {
+            // NO_DATE is the smallest long, so it sorts last
+            return Long.compare(b.getLastModifiedTime(), a.getLastModifiedTime());
+        }
+    };
+
+    /** Highest priority first */
+    public static final Comparator<SitemapUrl> BY_PRIORITY = new Comparator<SitemapUrl>() {
+        public int compare(SitemapUrl a, SitemapUrl b) {
+            return Double.compare(b.getPriority(), a.getPriority());
+        }
+    };
+
+    /** Most often changing first, URLs without a change frequency last */
+    public static final Comparator<SitemapUrl> BY_CHANGE_FREQUENCY = new Comparator<SitemapUrl>() {
+        public int compare(SitemapUrl a, SitemapUrl b) {
+            return rank(a.getChangeFrequency()) - rank(b.getChangeFrequency());
+        }
+
+        private int rank(SitemapUrl.ChangeFrequency changeFreq) {
+            return (changeFreq == null) ? Integer.MAX_VALUE : changeFreq.ordinal();
+        }
+    };
+
+    /** By URL, so equal URLs in the other orders still come out the same way */
+    public static final Comparator<SitemapUrl> BY_URL = new Comparator<SitemapUrl>() {
+        public int compare(SitemapUrl a, SitemapUrl b) {
+            return a.getUrl().toString().compareTo(b.getUrl().toString());
+        }
+    };
+
+    /** Refresh order: newest, then highest priority, then most often changing */
+    public static final Comparator<SitemapUrl> BY_FRESHNESS = BY_LAST_MODIFIED.thenComparing(BY_PRIORITY).thenComparing(BY_CHANGE_FREQUENCY).thenComparing(BY_URL);
+
+    /** Buckets by day, newest first */
+    private TreeMap<Long, List<SitemapUrl>> buckets = new TreeMap<Long, List<SitemapUrl>>(Collections.reverseOrder());
+
+    /** URLs without a date */
+    private List<SitemapUrl> undated = new ArrayList<SitemapUrl>();
+
+    private int size = 0;
+
+    public SitemapUrlIndex() {
+
+    }
+
+    public SitemapUrlIndex(Iterable<SitemapUrl> urls) {
+        addAll(urls);
+    }
+
+    public void add(SitemapUrl sUrl) {
+
+        long time = sUrl.getLastModifiedTime();
+        if (time == Sitemap.NO_DATE) {
+            undated.add(sUrl);
+        } else {
+            Long day = Math.floorDiv(time, DAY);
+            List<SitemapUrl> bucket = buckets.get(day);
+            if (bucket == null) {
+                bucket = new ArrayList<SitemapUrl>();
+                buckets.put(day, bucket);
+            }
+            bucket.add(sUrl);
+        }
+        size++;
+    }
+
+    public void addAll(Iterable<SitemapUrl> urls) {
+        for (SitemapUrl sUrl : urls) {
+            add(sUrl);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        buckets.clear();
+        undated.clear();
+        size = 0;
+    }
+
+    /** All URLs in BY_FRESHNESS order, sorting one day's bucket at a time */
+    public Iterator<SitemapUrl> iterator() {
+        return new BucketIterator(buckets, undated, Long.MIN_VALUE);
+    }
+
+    /**
+     * URLs modified at or after the time in milliseconds, newest first. Only
+     * the buckets of those days are looked at.
+     */
+    public Iterable<SitemapUrl> changedSince(final long time) {
+        return new Iterable<SitemapUrl>() {
+            public Iterator<SitemapUrl> iterator() {
+                NavigableMap<Long, List<SitemapUrl>> recent = buckets.headMap(Math.floorDiv(time, DAY), true);
+                return new BucketIterator(recent, null, time);
+            }
+        };
+    }
+
+    /** Number of URLs modified on each day, for scheduling */
+    public NavigableMap<Long, Integer> getDayCounts() {
+        TreeMap<Long, Integer> counts = new TreeMap<Long, Integer>();
+        for (Map.Entry<Long, List<SitemapUrl>> e : buckets.entrySet()) {
+            counts.put(e.getKey() * DAY, e.getValue().size());
+        }
+        return counts;
+    }
+
+    /** The k first URLs in the given order */
+    public List<SitemapUrl> top(int k, Comparator<? super SitemapUrl> order) {
+
+        // Newest first is the bucket order, so stop after k
+        if (order == BY_FRESHNESS) {
+            List<SitemapUrl> result = new ArrayList<SitemapUrl>(Math.min(k, size));
+            for (Iterator<SitemapUrl> it = iterator(); it.hasNext() && result.size() < k;) {
+                result.add(it.next());
+            }
+            return result;
+        }
+
+        return TopK.select(this, k, order);
+    }
+
+    /** Goes through the buckets in order and sorts each when it gets there */
+    private static class BucketIterator implements Iterator<SitemapUrl> {
+        private Iterator<List<SitemapUrl>> buckets;
+        private List<SitemapUrl> undated;
+        private long since;
+
+        private Iterator<SitemapUrl> current = Collections.<SitemapUrl> emptyIterator();
+        private SitemapUrl next;
+
+        BucketIterator(NavigableMap<Long, List<SitemapUrl>> buckets, List<SitemapUrl> undated, long since) {
+            this.buckets = buckets.values().iterator();
+            this.undated = undated;
+            this.since = since;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null) {
+                while (!current.hasNext()) {
+                    List<SitemapUrl> bucket;
+                    if (buckets.hasNext()) {
+                        bucket = new ArrayList<SitemapUrl>(buckets.next());
+                        Collections.sort(bucket, BY_FRESHNESS);
+                    } else if (undated != null) {
+                        bucket = new ArrayList<SitemapUrl>(undated);
+                        Collections.sort(bucket, BY_FRESHNESS);
+                        undated = null;
+                    } else {
+                        return;
+                    }
+                    current = bucket.iterator();
+                }
+
+                SitemapUrl sUrl = current.next();
+
+                // Only the oldest bucket of a changedSince() query needs this
+                if (sUrl.getLastModifiedTime() >= since) {
+                    next = sUrl;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public SitemapUrl next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            SitemapUrl sUrl = next;
+            advance();
+            return sUrl;
+        }
+    }
+}
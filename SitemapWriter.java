@@ -0,0 +1,364 @@
+package sitemap;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The SitemapWriter writes SitemapUrls to urlset files, starting a new file
+ * every 50,000 URLs or 50 MB, and a Sitemap Index listing them when it's
+ * closed. Each file is formatted by the thread calling write() and gzipped
+ * and written by a pool of threads. Only the files being written are held in
+ * memory, so there is no limit on the number of URLs. Safe for concurrent
+ * use.
+ */
+public class SitemapWriter {
+
+    /** According to the specs, 50K URLs per Sitemap is the max */
+    public static final int MAX_URLS = 50000;
+
+    /** According to the specs, 50 MB per Sitemap (uncompressed) is the max */
+    public static final int MAX_BYTES = 50 * 1024 * 1024;
+
+    /** A Sitemap Index may list no more Sitemaps than that either */
+    public static final int MAX_SITEMAPS = 50000;
+
+    private static final String URLSET_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n";
+
+    private static final String URLSET_END = "</urlset>\n";
+
+    /** Directory the files are written to */
+    private File directory;
+
+    /** URL the directory is published at, prefixes the locs in the index */
+    private String baseUrl;
+
+    /** Start of the file names */
+    private String prefix = "sitemap";
+
+    private boolean gzip = true;
+
+    /** W3C datetime in UTC, only used while holding the lock */
+    private DateFormat dateFormat;
+
+    private ExecutorService pool;
+
+    /** Parts formatted but not written yet, bounds the memory used */
+    private Semaphore pending;
+
+    /** Entries of the part being filled */
+    private List<String> entries = new ArrayList<String>();
+
+    /** UTF-8 size of the part being filled, including start and end */
+    private long partBytes;
+
+    /** Parts written or being written */
+    private List<Future<File>> parts = new ArrayList<Future<File>>();
+
+    /** Parts known to have been written */
+    private int partsChecked = 0;
+
+    private long urlsWritten = 0;
+
+    private boolean closed = false;
+
+    /**
+     * @param directory
+     *            where the Sitemaps and the index are written
+     * @param baseUrl
+     *            URL the directory will be published at
+     * @param threads
+     *            number of files gzipped and written at the same time
+     */
+    public SitemapWriter(File directory, String baseUrl, int threads) {
+        this.directory = directory;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+
+        threads = Math.max(1, threads);
+        pool = Executors.newFixedThreadPool(threads);
+        pending = new Semaphore(threads);
+
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'+00:00'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        partBytes = URLSET_START.length() + URLSET_END.length();
+    }
+
+    public SitemapWriter(File directory, String baseUrl) {
+        this(directory, baseUrl, Runtime.getRuntime().availableProcessors());
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /** Write .xml.gz files (default) or plain .xml */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public synchronized long getUrlsWritten() {
+        return urlsWritten;
+    }
+
+    /** Add a URL to the current Sitemap, starting a new one when it's full */
+    public synchronized void write(SitemapUrl sUrl) throws IOException, InterruptedException {
+
+        if (closed) {
+            throw new IOException("SitemapWriter is closed");
+        }
+
+        String entry = formatUrl(sUrl);
+        long bytes = utf8Length(entry);
+
+        if (entries.size() == MAX_URLS || (!entries.isEmpty() && partBytes + bytes > MAX_BYTES)) {
+            flushPart();
+        }
+
+        entries.add(entry);
+        partBytes += bytes;
+        urlsWritten++;
+    }
+
+    public void write(Sitemap sitemap) throws IOException, InterruptedException {
+        for (SitemapUrl sUrl : sitemap.getUrlList()) {
+            write(sUrl);
+        }
+    }
+
+    /**
+     * Write the last Sitemap, wait for all of them and write the Sitemap
+     * Index. Returns the index file.
+     */
+    public synchronized File close() throws IOException, InterruptedException {
+
+        if (closed) {
+            throw new IOException("SitemapWriter is closed");
+        }
+
+        try {
+            if (!entries.isEmpty()) {
+                flushPart();
+            }
+        } finally {
+            closed = true;
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        List<File> files = new ArrayList<File>();
+        for (Future<File> part : parts) {
+            files.add(getPart(part));
+        }
+
+        makeDirectory();
+        File index = new File(directory, prefix + "-index.xml");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(index), StandardCharsets.UTF_8));
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+            for (File file : files) {
+                out.write("  <sitemap>\n    <loc>" + escape(baseUrl + file.getName()) + "</loc>\n");
+                out.write("    <lastmod>" + dateFormat.format(new Date(file.lastModified())) + "</lastmod>\n  </sitemap>\n");
+            }
+            out.write("</sitemapindex>\n");
+        } finally {
+            out.close();
+        }
+
+        return index;
+    }
+
+    private void makeDirectory() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+    }
+
+    /** Hand the current part to the pool, waits while all threads are busy */
+    private void flushPart() throws IOException, InterruptedException {
+
+        if (parts.size() == MAX_SITEMAPS) {
+            throw new IOException("Sitemap Index is full at " + MAX_SITEMAPS + " Sitemaps");
+        }
+
+        // Stop early if an earlier part failed
+        while (partsChecked < parts.size() && parts.get(partsChecked).isDone()) {
+            getPart(parts.get(partsChecked++));
+        }
+
+        if (parts.isEmpty()) {
+            makeDirectory();
+        }
+
+        final List<String> part = entries;
+        final File file = new File(directory, prefix + "-" + (parts.size() + 1) + (gzip ? ".xml.gz" : ".xml"));
+
+        entries = new ArrayList<String>();
+        partBytes = URLSET_START.length() + URLSET_END.length();
+
+        pending.acquire();
+        try {
+            parts.add(pool.submit(new Callable<File>() {
+                public File call() throws IOException {
+                    try {
+                        writePart(file, part);
+                        return file;
+                    } finally {
+                        pending.release();
+                    }
+                }
+            }));
+        } catch (RuntimeException e) {
+            pending.release();
+            throw e;
+        }
+    }
+
+    private void writePart(File file, List<String> part) throws IOException {
+
+        CrawlEvents.SinkWrite event = new CrawlEvents.SinkWrite();
+        event.begin();
+
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        if (gzip) {
+            os = new GZIPOutputStream(os, 64 * 1024);
+        }
+
+        Writer out = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+        try {
+            out.write(URLSET_START);
+            for (String entry : part) {
+                out.write(entry);
+            }
+            out.write(URLSET_END);
+        } finally {
+            out.close();
+        }
+
+        if (event.shouldCommit()) {
+            event.sink = "SitemapWriter";
+            event.target = file.getPath();
+            event.urls = part.size();
+            event.bytes = file.length();
+            event.commit();
+        }
+    }
+
+    private static File getPart(Future<File> part) throws IOException, InterruptedException {
+        try {
+            return part.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to write Sitemap", cause);
+        }
+    }
+
+    private String formatUrl(SitemapUrl sUrl) {
+
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("  <url>\n    <loc>").append(escape(sUrl.getUrl().toString())).append("</loc>\n");
+
+        long lastModified = sUrl.getLastModifiedTime();
+        if (lastModified != Sitemap.NO_DATE) {
+            sb.append("    <lastmod>").append(dateFormat.format(new Date(lastModified))).append("</lastmod>\n");
+        }
+
+        if (sUrl.getChangeFrequency() != null) {
+            sb.append("    <changefreq>").append(sUrl.getChangeFrequency().name().toLowerCase(Locale.ROOT)).append("</changefreq>\n");
+        }
+
+        // 0.0 is what a SitemapUrl without a priority has. The schema wants a
+        // plain decimal, a double could print as 1.0E-4.
+        if (sUrl.getPriority() > 0.0) {
+            String priority = BigDecimal.valueOf(sUrl.getPriority()).stripTrailingZeros().toPlainString();
+            sb.append("    <priority>").append(priority).append("</priority>\n");
+        }
+
+        return sb.append("  </url>\n").toString();
+    }
+
+    /** Escape the characters the Sitemap protocol requires to be escaped */
+    static String escape(String s) {
+
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            String entity;
+            switch (s.charAt(i)) {
+            case '&':
+                entity = "&amp;";
+                break;
+            case '\'':
+                entity = "&apos;";
+                break;
+            case '"':
+                entity = "&quot;";
+                break;
+            case '<':
+                entity = "&lt;";
+                break;
+            case '>':
+                entity = "&gt;";
+                break;
+            default:
+                if (sb != null)
+                    sb.append(s.charAt(i));
+                continue;
+            }
+
+            if (sb == null) {
+                sb = new StringBuilder(s.length() + 16);
+                sb.append(s, 0, i);
+            }
+            sb.append(entity);
+        }
+
+        return (sb == null) ? s : sb.toString();
+    }
+
+    private static long utf8Length(String s) {
+        long length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800 && !Character.isSurrogate(c)) {
+                length += 2;
+            } else if (c >= 0x80) {
+                // A surrogate pair is 4 bytes for 2 chars
+                length += 1;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,132 @@
+package sitemap;
+
+import static sitemap.TestSupport.check;
+import static sitemap.TestSupport.newUrl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Checks that SitemapWriter splits at the protocol's limits, writes values
+ * the schema accepts, and that its Sitemaps and index parse back to the URLs
+ * written. Run with java sitemap.SitemapWriterTest, it exits with an error on
+ * the first failed check.
+ */
+public class SitemapWriterTest {
+
+    public static void main(String[] args) throws Exception {
+
+        // The writer writes UTC and the parser reads only the date part of a
+        // lastmod, so whole UTC days come back unchanged
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "writer-test-" + System.nanoTime());
+        try {
+            testRoundTrip(new File(dir, "missing/gz"), true);
+            testRoundTrip(new File(dir, "plain"), false);
+            testFormat(new File(dir, "format"));
+        } finally {
+            delete(dir);
+        }
+        System.out.println("SitemapWriterTest OK");
+    }
+
+    /** Write past the URL limit into a directory that doesn't exist yet */
+    private static void testRoundTrip(File dir, boolean gzip) throws Exception {
+
+        int n = 2 * SitemapWriter.MAX_URLS + 1;
+        Map<String, String> written = new HashMap<String, String>();
+
+        SitemapWriter writer = new SitemapWriter(dir, "http://example.com/sitemaps", 2);
+        writer.setGzip(gzip);
+        for (int i = 0; i < n; i++) {
+            SitemapUrl sUrl = newUrl(i, i % 2 == 0 ? new Date((18000 + i % 1000) * 24 * 60 * 60 * 1000L) : null);
+            writer.write(sUrl);
+            written.put(sUrl.getUrl().toString(), sUrl.toString());
+        }
+        File index = writer.close();
+        check(writer.getUrlsWritten() == n, "URLs written " + writer.getUrlsWritten());
+
+        // The index lists three parts under the base URL
+        String ext = gzip ? ".xml.gz" : ".xml";
+        String indexXml = new String(Files.readAllBytes(index.toPath()), StandardCharsets.UTF_8);
+        for (int part = 1; part <= 3; part++) {
+            check(indexXml.contains("<loc>http://example.com/sitemaps/sitemap-" + part + ext + "</loc>"), "index lists part " + part);
+        }
+        check(!indexXml.contains("sitemap-4"), "index lists three parts");
+
+        Map<String, String> read = new HashMap<String, String>();
+        for (int part = 1; part <= 3; part++) {
+            File file = new File(dir, "sitemap-" + part + ext);
+            SitemapParser parser = new SitemapParser();
+            parser.processSitemap(file.toURI().toURL());
+            int size = parser.getSitemap().getUrlListSize();
+            check(size == (part < 3 ? SitemapWriter.MAX_URLS : 1), "part " + part + " holds " + size + " URLs");
+            for (SitemapUrl sUrl : parser.getSitemap().getUrlList()) {
+                read.put(sUrl.getUrl().toString(), sUrl.toString());
+            }
+        }
+        check(read.equals(written), "parts parse back to the URLs written");
+    }
+
+    private static void testFormat(File dir) throws Exception {
+
+        SitemapWriter writer = new SitemapWriter(dir, "http://example.com/");
+        writer.setGzip(true);
+
+        SitemapUrl small = new SitemapUrl(new URL("http://example.com/small?x=<1>&y='2'"));
+        small.setPriority(0.0001);
+        writer.write(small);
+
+        SitemapUrl low = new SitemapUrl(new URL("http://example.com/low"));
+        low.setPriority(0.04);
+        writer.write(low);
+
+        SitemapUrl top = new SitemapUrl(new URL("http://example.com/top"));
+        top.setPriority(1.0);
+        writer.write(top);
+
+        SitemapUrl half = new SitemapUrl(new URL("http://example.com/half"));
+        half.setPriority(0.75);
+        half.setChangeFrequency(SitemapUrl.ChangeFrequency.WEEKLY);
+        writer.write(half);
+        writer.close();
+
+        String xml = gunzip(new File(dir, "sitemap-1.xml.gz"));
+        check(!xml.contains("E-"), "no scientific notation in " + xml);
+        check(xml.contains("<priority>0.0001</priority>"), "tiny priority written in full");
+        check(xml.contains("<priority>0.04</priority>"), "0.04 written in full");
+        check(xml.contains("<priority>1</priority>"), "1.0 written as 1");
+        check(xml.contains("<priority>0.75</priority>"), "0.75 not rounded");
+        check(xml.contains("<changefreq>weekly</changefreq>"), "change frequency in lower case");
+        check(xml.contains("<loc>http://example.com/small?x=&lt;1&gt;&amp;y=&apos;2&apos;</loc>"), "loc escaped: " + xml);
+    }
+
+    private static String gunzip(File file) throws Exception {
+        InputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,555 @@
+package sitemap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The URL list of a Sitemap with a memory budget. URLs stay in memory until
+ * all lists together go over the budget, then the list that is adding writes
+ * its URLs to a sorted run file on disk. Once a list has spilled, iterating it
+ * merges the runs and the URLs still in memory in URL order. Like the
+ * Hashtable it replaces, a URL added twice is only kept once and the later
+ * one wins. Adding is synchronized, but the list must not change while it's
+ * being iterated. clear() or close() give the memory budget back and delete
+ * the run files, and so does the garbage collector for a list that is
+ * dropped without them. An iteration that stops early keeps run files open
+ * until clear() or until the garbage collector finds the iterator.
+ */
+public class SpillingUrlList extends AbstractCollection<SitemapUrl> implements Closeable {
+
+    /** Memory all lists may use together before they spill */
+    private static volatile long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+
+    /** Directory the run files are written to */
+    private static volatile File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+    /** Estimated memory of the URLs all lists hold in memory */
+    private static final AtomicLong bufferedBytes = new AtomicLong();
+
+    /** Don't spill smaller lists, many tiny runs are slow to merge */
+    private static final long MIN_RUN_BYTES = 1024 * 1024;
+
+    /** Rough heap use of a SitemapUrl and its URL besides the characters */
+    private static final int URL_OVERHEAD = 200;
+
+    /** Flags of a run entry */
+    private static final int HAS_LAST_MODIFIED = 1, HAS_CHANGE_FREQUENCY = 2, HAS_PRIORITY = 4;
+
+    private static final SitemapUrl.ChangeFrequency[] CHANGE_FREQUENCIES = SitemapUrl.ChangeFrequency.values();
+
+    /** Releases the resources of lists that were dropped without clear() */
+    private static final Cleaner cleaner = Cleaner.create();
+
+    /** URLs that haven't been spilled, by their URL string */
+    private HashMap<String, SitemapUrl> urls = new HashMap<String, SitemapUrl>();
+
+    /** The estimated memory of urls and the run files */
+    private Resources resources = new Resources();
+
+    /** Hashes of all URLs added since the first spill, they count the URLs */
+    private OffHeapHashSet spilledKeys = null;
+
+    /** Number of add() calls, duplicates included */
+    private int added = 0;
+
+    /** Set after a failed spill, the list then stays in memory */
+    private boolean spillFailed = false;
+
+    /**
+     * What a list holds outside the heap objects it references. The cleaner
+     * runs it once the list is unreachable, so it must not refer to the list.
+     */
+    private static class Resources implements Runnable {
+        private long bytes = 0;
+
+        /** Run files, oldest first */
+        private List<File> runs = new ArrayList<File>();
+
+        /** Run files open for reading by iterators */
+        private Set<Closeable> open = new HashSet<Closeable>();
+
+        synchronized void addBytes(long estimate) {
+            bytes += estimate;
+            bufferedBytes.addAndGet(estimate);
+        }
+
+        synchronized long getBytes() {
+            return bytes;
+        }
+
+        /** The URLs in memory were written to the run */
+        synchronized void spilled(File run) {
+            runs.add(run);
+            bufferedBytes.addAndGet(-bytes);
+            bytes = 0;
+        }
+
+        synchronized List<File> getRuns() {
+            return new ArrayList<File>(runs);
+        }
+
+        synchronized boolean hasRuns() {
+            return !runs.isEmpty();
+        }
+
+        synchronized void opened(Closeable in) {
+            open.add(in);
+        }
+
+        synchronized void closed(Closeable in) {
+            open.remove(in);
+        }
+
+        synchronized int getOpenCount() {
+            return open.size();
+        }
+
+        /** Give the memory budget back, close and delete the run files */
+        public synchronized void run() {
+            bufferedBytes.addAndGet(-bytes);
+            bytes = 0;
+
+            for (Closeable in : open) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // The file is deleted anyway
+                }
+            }
+            open.clear();
+
+            for (File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        }
+    }
+
+    public SpillingUrlList() {
+        cleaner.register(this, resources);
+    }
+
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Memory in bytes that the URL lists of all Sitemaps may use together */
+    public static void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget > 0) {
+            SpillingUrlList.memoryBudget = memoryBudget;
+        }
+    }
+
+    public static File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public static void setSpillDirectory(File spillDirectory) {
+        SpillingUrlList.spillDirectory = spillDirectory;
+    }
+
+    /** Estimated memory of the URLs held in memory by all lists */
+    public static long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    public synchronized boolean add(SitemapUrl sUrl) {
+
+        String key = sUrl.getUrl().toString();
+        if (urls.put(key, sUrl) == null) {
+
+            // The URL object keeps several parts of the string besides it
+            resources.addBytes(URL_OVERHEAD + 4L * key.length());
+        }
+        if (spilledKeys != null) {
+            addSpilledKey(key);
+        }
+        added++;
+
+        if (!spillFailed && resources.getBytes() >= MIN_RUN_BYTES && bufferedBytes.get() > memoryBudget) {
+            spill();
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return (spilledKeys == null) ? urls.size() : (int) spilledKeys.size();
+    }
+
+    private void addSpilledKey(String key) {
+        long[] h = UrlDeduplicator.hash128(key);
+        spilledKeys.add(h[0], h[1]);
+    }
+
+    /** Number of URLs added, cheaper than size() once the list has spilled */
+    public synchronized int getAddedCount() {
+        return added;
+    }
+
+    /** Number of run files on disk */
+    public synchronized int getRunCount() {
+        return resources.getRuns().size();
+    }
+
+    /** Number of run files open for reading by iterators */
+    synchronized int getOpenRunCount() {
+        return resources.getOpenCount();
+    }
+
+    /** Free the memory and delete the run files, the list can be reused */
+    public synchronized void clear() {
+
+        urls.clear();
+        resources.run();
+        spilledKeys = null;
+        added = 0;
+        spillFailed = false;
+    }
+
+    /** Same as clear() */
+    public void close() {
+        clear();
+    }
+
+    public synchronized Iterator<SitemapUrl> iterator() {
+
+        if (!resources.hasRuns()) {
+            return Collections.unmodifiableCollection(urls.values()).iterator();
+        }
+
+        try {
+            return new MergeIterator(resources, sorted());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** The URLs in memory in URL order */
+    private List<Map.Entry<String, SitemapUrl>> sorted() {
+
+        List<Map.Entry<String, SitemapUrl>> entries = new ArrayList<Map.Entry<String, SitemapUrl>>(urls.entrySet());
+        Collections.sort(entries, Map.Entry.<String, SitemapUrl> comparingByKey());
+        return entries;
+    }
+
+    /** Write the URLs in memory to a new run file */
+    private void spill() {
+
+        File run = null;
+        try {
+            run = File.createTempFile("sitemap-urls", ".run", spillDirectory);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 64 * 1024));
+            try {
+                writeRun(out, sorted());
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to spill URLs to " + spillDirectory + ", keeping them in memory: " + e.getMessage());
+            if (run != null) {
+                run.delete();
+            }
+            spillFailed = true;
+            return;
+        }
+
+        // From now on the hashes count the URLs, the runs can't
+        if (spilledKeys == null) {
+            spilledKeys = new OffHeapHashSet(2L * urls.size(), 1);
+            for (String key : urls.keySet()) {
+                addSpilledKey(key);
+            }
+        }
+
+        resources.spilled(run);
+        urls.clear();
+    }
+
+    /**
+     * A run is the number of entries followed by the entries in URL order.
+     * Each URL is stored as the length of the prefix it shares with the one
+     * before and the UTF-8 bytes of the rest, sorted URLs of a site share most
+     * of their characters.
+     */
+    private static void writeRun(DataOutputStream out, List<Map.Entry<String, SitemapUrl>> entries) throws IOException {
+
+        out.writeInt(entries.size());
+
+        String previous = "";
+        for (Map.Entry<String, SitemapUrl> entry : entries) {
+            String key = entry.getKey();
+            SitemapUrl sUrl = entry.getValue();
+
+            int shared = 0;
+            int max = Math.min(previous.length(), key.length());
+            while (shared < max && previous.charAt(shared) == key.charAt(shared)) {
+                shared++;
+            }
+
+            // Don't split a surrogate pair
+            if (shared > 0 && Character.isHighSurrogate(key.charAt(shared - 1))) {
+                shared--;
+            }
+
+            byte[] suffix = key.substring(shared).getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, shared);
+            writeVarInt(out, suffix.length);
+            out.write(suffix);
+
+            long lastModified = sUrl.getLastModifiedTime();
+            SitemapUrl.ChangeFrequency changeFreq = sUrl.getChangeFrequency();
+            double priority = sUrl.getPriority();
+
+            int flags = 0;
+            if (lastModified != Sitemap.NO_DATE)
+                flags |= HAS_LAST_MODIFIED;
+            if (changeFreq != null)
+                flags |= HAS_CHANGE_FREQUENCY;
+            if (priority != 0.0)
+                flags |= HAS_PRIORITY;
+
+            out.writeByte(flags);
+            if (lastModified != Sitemap.NO_DATE)
+                out.writeLong(lastModified);
+            if (changeFreq != null)
+                out.writeByte(changeFreq.ordinal());
+            if (priority != 0.0)
+                out.writeDouble(priority);
+
+            previous = key;
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad run file");
+    }
+
+    /** One of the sorted inputs of a merge */
+    private static abstract class Source {
+        /** Later sources win over earlier ones for the same URL */
+        int order;
+        String key;
+        SitemapUrl value;
+
+        /** Move to the next entry, false at the end */
+        abstract boolean advance() throws IOException;
+
+        void close() {
+
+        }
+    }
+
+    private static class RunSource extends Source {
+        private File file;
+        private DataInputStream in;
+        private int remaining;
+        private Resources resources;
+
+        RunSource(File file, int order, Resources resources) throws IOException {
+            this.file = file;
+            this.order = order;
+            this.resources = resources;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            resources.opened(in);
+            try {
+                remaining = in.readInt();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            key = "";
+        }
+
+        boolean advance() throws IOException {
+
+            if (remaining == 0) {
+                close();
+                return false;
+            }
+            remaining--;
+
+            try {
+                int shared = readVarInt(in);
+                byte[] suffix = new byte[readVarInt(in)];
+                in.readFully(suffix);
+                key = key.substring(0, shared) + new String(suffix, StandardCharsets.UTF_8);
+
+                value = new SitemapUrl(UrlInterner.newUrl(key));
+
+                int flags = in.readUnsignedByte();
+                if ((flags & HAS_LAST_MODIFIED) != 0)
+                    value.setLastModified(new Date(in.readLong()));
+                if ((flags & HAS_CHANGE_FREQUENCY) != 0)
+                    value.setChangeFrequency(CHANGE_FREQUENCIES[in.readUnsignedByte()]);
+                if ((flags & HAS_PRIORITY) != 0)
+                    value.setPriority(in.readDouble());
+            } catch (EOFException e) {
+                close();
+                throw new IOException("Truncated run file " + file, e);
+            } catch (MalformedURLException e) {
+                close();
+                throw new IOException("Bad URL in run file " + file, e);
+            }
+            return true;
+        }
+
+        void close() {
+            resources.closed(in);
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing left to read anyway
+            }
+        }
+    }
+
+    private static class MemorySource extends Source {
+        private Iterator<Map.Entry<String, SitemapUrl>> it;
+
+        MemorySource(List<Map.Entry<String, SitemapUrl>> entries, int order) {
+            this.it = entries.iterator();
+            this.order = order;
+        }
+
+        boolean advance() {
+            if (!it.hasNext()) {
+                return false;
+            }
+            Map.Entry<String, SitemapUrl> entry = it.next();
+            key = entry.getKey();
+            value = entry.getValue();
+            return true;
+        }
+    }
+
+    /**
+     * Closes the sources of an iteration. The cleaner runs it if the iterator
+     * is dropped before the end, so it must not refer to the iterator.
+     */
+    private static class SourceCloser implements Runnable {
+        private List<Source> sources = new ArrayList<Source>();
+
+        synchronized void add(Source source) {
+            sources.add(source);
+        }
+
+        public synchronized void run() {
+            for (Source s : sources) {
+                s.close();
+            }
+            sources.clear();
+        }
+    }
+
+    /** Merges the sorted sources, keeping the latest entry of each URL */
+    private static class MergeIterator implements Iterator<SitemapUrl> {
+
+        private PriorityQueue<Source> queue = new PriorityQueue<Source>(11, new Comparator<Source>() {
+            public int compare(Source a, Source b) {
+                int c = a.key.compareTo(b.key);
+                return (c != 0) ? c : b.order - a.order;
+            }
+        });
+
+        private SourceCloser closer = new SourceCloser();
+
+        private Cleaner.Cleanable cleanable;
+
+        MergeIterator(Resources resources, List<Map.Entry<String, SitemapUrl>> memory) throws IOException {
+
+            cleanable = cleaner.register(this, closer);
+            List<File> runs = resources.getRuns();
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    RunSource source = new RunSource(runs.get(i), i, resources);
+                    closer.add(source);
+                    add(source);
+                }
+                add(new MemorySource(memory, runs.size()));
+            } catch (IOException e) {
+                cleanable.clean();
+                throw e;
+            }
+        }
+
+        private void add(Source source) throws IOException {
+            if (source.advance()) {
+                queue.add(source);
+            }
+        }
+
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        public SitemapUrl next() {
+
+            if (queue.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+
+            try {
+                Source top = queue.poll();
+                String key = top.key;
+                SitemapUrl value = top.value;
+                add(top);
+
+                // Skip older entries of the same URL
+                while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+                    add(queue.poll());
+                }
+
+                if (queue.isEmpty()) {
+                    cleanable.clean();
+                }
+                return value;
+            } catch (IOException e) {
+                cleanable.clean();
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
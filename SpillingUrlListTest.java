@@ -0,0 +1,164 @@
+package sitemap;
+
+import static sitemap.TestSupport.check;
+import static sitemap.TestSupport.newUrl;
+
+import java.io.File;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that a SpillingUrlList that spilled gives the same URLs as one that
+ * didn't, with the later of two entries for a URL winning, and that its
+ * size, memory budget and run files are kept straight, also when an
+ * iteration stops early. Run with java
+ * sitemap.SpillingUrlListTest, it exits with an error on the first failed
+ * check.
+ */
+public class SpillingUrlListTest {
+
+    private static File dir;
+
+    public static void main(String[] args) throws Exception {
+
+        dir = new File(System.getProperty("java.io.tmpdir"), "spill-test-" + System.nanoTime());
+        dir.mkdirs();
+        SpillingUrlList.setSpillDirectory(dir);
+
+        try {
+            testInMemory();
+            testSpillMerge();
+            testClear();
+            testDropped();
+            testAbandonedIteration();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+        System.out.println("SpillingUrlListTest OK");
+    }
+
+    /** Add random pages, several times each, and remember the last version */
+    private static Map<String, String> fill(SpillingUrlList list, int adds, int pages) throws Exception {
+        Map<String, String> expected = new HashMap<String, String>();
+        Random random = new Random(42);
+        for (int i = 0; i < adds; i++) {
+            SitemapUrl sUrl = newUrl(random.nextInt(pages), new Date(1600000000000L + i * 1000L));
+            list.add(sUrl);
+            expected.put(sUrl.getUrl().toString(), sUrl.toString());
+        }
+        return expected;
+    }
+
+    private static Map<String, String> contents(SpillingUrlList list) {
+        Map<String, String> contents = new HashMap<String, String>();
+        String previous = null;
+        for (SitemapUrl sUrl : list) {
+            String key = sUrl.getUrl().toString();
+            check(contents.put(key, sUrl.toString()) == null, "URL listed once: " + key);
+
+            // A spilled list comes back in URL order
+            if (list.getRunCount() > 0) {
+                check(previous == null || previous.compareTo(key) < 0, "URL order at " + key);
+            }
+            previous = key;
+        }
+        return contents;
+    }
+
+    private static void testInMemory() throws Exception {
+        SpillingUrlList.setMemoryBudget(Long.MAX_VALUE);
+        SpillingUrlList list = new SpillingUrlList();
+        Map<String, String> expected = fill(list, 20000, 5000);
+
+        check(list.getRunCount() == 0, "nothing spilled under a large budget");
+        check(list.size() == expected.size(), "size " + list.size() + " of " + expected.size());
+        check(contents(list).equals(expected), "in-memory list keeps the latest entries");
+        list.clear();
+    }
+
+    private static void testSpillMerge() throws Exception {
+        SpillingUrlList.setMemoryBudget(1024 * 1024);
+        SpillingUrlList list = new SpillingUrlList();
+        Map<String, String> expected = fill(list, 200000, 60000);
+
+        check(list.getRunCount() > 1, "list spilled several runs, got " + list.getRunCount());
+        check(list.size() == expected.size(), "size " + list.size() + " of " + expected.size());
+        check(list.getAddedCount() == 200000, "added count " + list.getAddedCount());
+        check(contents(list).equals(expected), "merge keeps the latest entries");
+        list.clear();
+    }
+
+    private static void testClear() throws Exception {
+        SpillingUrlList.setMemoryBudget(1024 * 1024);
+        SpillingUrlList list = new SpillingUrlList();
+        fill(list, 100000, 100000);
+        check(list.getRunCount() > 0, "list spilled");
+
+        list.clear();
+        check(list.size() == 0, "cleared list is empty");
+        check(list.getRunCount() == 0, "cleared list has no runs");
+        check(dir.list().length == 0, "run files deleted");
+        check(SpillingUrlList.getBufferedBytes() == 0, "budget given back, " + SpillingUrlList.getBufferedBytes() + " bytes left");
+
+        // The list can be used again
+        Map<String, String> expected = fill(list, 1000, 500);
+        check(contents(list).equals(expected), "reused list");
+        list.close();
+        check(SpillingUrlList.getBufferedBytes() == 0, "closed list gave the budget back");
+    }
+
+    private static void testDropped() throws Exception {
+        SpillingUrlList.setMemoryBudget(1024 * 1024);
+        SpillingUrlList list = new SpillingUrlList();
+        fill(list, 100000, 100000);
+        check(list.getRunCount() > 0, "list spilled");
+        check(SpillingUrlList.getBufferedBytes() > 0, "list holds part of the budget");
+
+        // The cleaner releases it some time after it's collected
+        list = null;
+        for (int i = 0; i < 50 && (SpillingUrlList.getBufferedBytes() != 0 || dir.list().length != 0); i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        check(SpillingUrlList.getBufferedBytes() == 0, "dropped list gave the budget back");
+        check(dir.list().length == 0, "dropped list's run files deleted");
+    }
+
+    private static void testAbandonedIteration() throws Exception {
+        SpillingUrlList.setMemoryBudget(1024 * 1024);
+        SpillingUrlList list = new SpillingUrlList();
+        fill(list, 100000, 100000);
+        int runs = list.getRunCount();
+        check(runs > 0, "list spilled");
+
+        // A full iteration closes the runs at the end
+        contents(list);
+        check(list.getOpenRunCount() == 0, "runs closed after a full iteration");
+
+        // clear() closes the runs of an iteration that stopped
+        Iterator<SitemapUrl> it = list.iterator();
+        it.next();
+        check(list.getOpenRunCount() == runs, "iteration has " + runs + " runs open, got " + list.getOpenRunCount());
+        list.clear();
+        check(list.getOpenRunCount() == 0, "clear() closed the runs");
+
+        // The cleaner closes them some time after the iterator is collected
+        fill(list, 100000, 100000);
+        it = list.iterator();
+        it.next();
+        check(list.getOpenRunCount() > 0, "iteration has runs open");
+        it = null;
+        for (int i = 0; i < 50 && list.getOpenRunCount() != 0; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        check(list.getOpenRunCount() == 0, "dropped iterator closed its runs");
+        list.close();
+    }
+}
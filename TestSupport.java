@@ -0,0 +1,40 @@
+package sitemap;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Date;
+
+/**
+ * What the tests share. They are plain programs run with java
+ * sitemap.&lt;Name&gt;Test that exit with an error on the first failed check.
+ */
+class TestSupport {
+
+    private TestSupport() {
+
+    }
+
+    static void check(boolean ok, String what) {
+        if (!ok) {
+            throw new AssertionError(what);
+        }
+    }
+
+    /**
+     * A URL of example.com with characters that need escaping, some of the
+     * optional fields set depending on the page number
+     *
+     * @param lastModified
+     *            null to leave it out
+     */
+    static SitemapUrl newUrl(int page, Date lastModified) throws MalformedURLException {
+        SitemapUrl sUrl = new SitemapUrl(new URL("http://example.com/p/" + page + "?a=1&b=" + page));
+        if (lastModified != null)
+            sUrl.setLastModified(lastModified);
+        if (page % 3 == 0)
+            sUrl.setChangeFrequency(SitemapUrl.ChangeFrequency.values()[page % 7]);
+        if (page % 5 == 0)
+            sUrl.setPriority((1 + page % 10) / 10.0);
+        return sUrl;
+    }
+}
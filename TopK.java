@@ -0,0 +1,86 @@
+package sitemap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the k first elements of a stream in a given order without sorting or
+ * holding the whole stream. The heap holds the k best elements seen so far
+ * with the worst of them on top, so each element costs O(log k) at most.
+ */
+public class TopK<T> {
+    private int k;
+
+    private Comparator<? super T> order;
+
+    /** The worst element kept is the head */
+    private PriorityQueue<T> heap;
+
+    private long offered = 0;
+
+    public TopK(int k, Comparator<? super T> order) {
+        if (k < 0) {
+            throw new IllegalArgumentException("Negative k " + k);
+        }
+
+        this.k = k;
+        this.order = order;
+        heap = new PriorityQueue<T>(Math.max(1, Math.min(k, 1024)), Collections.reverseOrder(order));
+    }
+
+    /** Returns true if the element is among the first k so far */
+    public boolean offer(T element) {
+
+        offered++;
+        if (k == 0) {
+            return false;
+        }
+
+        if (heap.size() < k) {
+            heap.add(element);
+            return true;
+        }
+
+        if (order.compare(element, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(element);
+            return true;
+        }
+        return false;
+    }
+
+    public void offerAll(Iterable<? extends T> elements) {
+        for (T element : elements) {
+            offer(element);
+        }
+    }
+
+    /** Number of elements offered so far */
+    public long getOffered() {
+        return offered;
+    }
+
+    /** The elements kept, in order */
+    public List<T> getResult() {
+        List<T> result = new ArrayList<T>(heap);
+        Collections.sort(result, order);
+        return result;
+    }
+
+    /** The k first elements of a stream, in order */
+    public static <T> List<T> select(Iterator<? extends T> it, int k, Comparator<? super T> order) {
+        TopK<T> top = new TopK<T>(k, order);
+        while (it.hasNext()) {
+            top.offer(it.next());
+        }
+        return top.getResult();
+    }
+
+    public static <T> List<T> select(Iterable<? extends T> elements, int k, Comparator<? super T> order) {
+        return select(elements.iterator(), k, order);
+    }
+}
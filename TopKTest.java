@@ -0,0 +1,134 @@
+package sitemap;
+
+import static sitemap.TestSupport.check;
+import static sitemap.TestSupport.newUrl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that TopK and the SitemapUrlIndex give the same URLs in the same
+ * order as a full sort, and that changedSince() returns exactly the URLs
+ * modified at or after its time. Run with java sitemap.TopKTest, it exits
+ * with an error on the first failed check.
+ */
+public class TopKTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    /** Noon of the middle day of the URLs */
+    private static final long MIDDLE = 18000 * DAY + DAY / 2;
+
+    public static void main(String[] args) throws Exception {
+
+        List<SitemapUrl> urls = newUrls(5000);
+        testSelect(urls);
+        testIndexOrder(urls);
+        testChangedSince(urls);
+        System.out.println("TopKTest OK");
+    }
+
+    /** URLs over 60 days around MIDDLE, some before 1970, one in ten without a date */
+    private static List<SitemapUrl> newUrls(int n) throws Exception {
+        Random random = new Random(42);
+        List<SitemapUrl> urls = new ArrayList<SitemapUrl>();
+        for (int i = 0; i < n; i++) {
+            Date lastModified = null;
+            if (i % 10 == 1) {
+                lastModified = new Date(-random.nextInt(3) * DAY - random.nextInt((int) DAY));
+            } else if (i % 10 != 0) {
+                lastModified = new Date(MIDDLE + (random.nextInt(60) - 30) * DAY + random.nextInt((int) DAY));
+            }
+            urls.add(newUrl(i, lastModified));
+        }
+        return urls;
+    }
+
+    private static List<SitemapUrl> sorted(List<SitemapUrl> urls, Comparator<? super SitemapUrl> order) {
+        List<SitemapUrl> sorted = new ArrayList<SitemapUrl>(urls);
+        Collections.sort(sorted, order);
+        return sorted;
+    }
+
+    private static List<String> strings(Iterable<SitemapUrl> urls) {
+        List<String> strings = new ArrayList<String>();
+        for (SitemapUrl sUrl : urls) {
+            strings.add(sUrl.toString());
+        }
+        return strings;
+    }
+
+    private static void testSelect(List<SitemapUrl> urls) {
+
+        @SuppressWarnings("unchecked")
+        Comparator<SitemapUrl>[] orders = new Comparator[] { SitemapUrlIndex.BY_FRESHNESS,
+                SitemapUrlIndex.BY_PRIORITY.thenComparing(SitemapUrlIndex.BY_URL),
+                SitemapUrlIndex.BY_CHANGE_FREQUENCY.thenComparing(SitemapUrlIndex.BY_URL) };
+
+        for (Comparator<SitemapUrl> order : orders) {
+            List<String> all = strings(sorted(urls, order));
+            for (int k : new int[] { 0, 1, 10, 1000, urls.size(), urls.size() + 5 }) {
+                List<String> top = strings(TopK.select(urls, k, order));
+                check(top.equals(all.subList(0, Math.min(k, all.size()))), "top " + k + " match a full sort");
+            }
+        }
+
+        TopK<SitemapUrl> topK = new TopK<SitemapUrl>(3, SitemapUrlIndex.BY_FRESHNESS);
+        topK.offerAll(urls);
+        check(topK.getOffered() == urls.size(), "offered count " + topK.getOffered());
+
+        try {
+            new TopK<SitemapUrl>(-1, SitemapUrlIndex.BY_FRESHNESS);
+            check(false, "negative k rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static void testIndexOrder(List<SitemapUrl> urls) {
+
+        SitemapUrlIndex index = new SitemapUrlIndex(urls);
+        check(index.size() == urls.size(), "index size " + index.size());
+
+        List<String> all = strings(sorted(urls, SitemapUrlIndex.BY_FRESHNESS));
+        check(strings(index).equals(all), "index iterates in freshness order");
+
+        check(strings(index.top(100, SitemapUrlIndex.BY_FRESHNESS)).equals(all.subList(0, 100)), "index top 100 by freshness");
+
+        Comparator<SitemapUrl> byPriority = SitemapUrlIndex.BY_PRIORITY.thenComparing(SitemapUrlIndex.BY_URL);
+        check(strings(index.top(100, byPriority)).equals(strings(sorted(urls, byPriority)).subList(0, 100)), "index top 100 by priority");
+
+        int dated = 0;
+        for (int count : index.getDayCounts().values()) {
+            dated += count;
+        }
+        check(dated == urls.size() - urls.size() / 10, "day counts hold the dated URLs, got " + dated);
+
+        index.clear();
+        check(index.size() == 0 && !index.iterator().hasNext(), "cleared index is empty");
+    }
+
+    private static void testChangedSince(List<SitemapUrl> urls) {
+
+        SitemapUrlIndex index = new SitemapUrlIndex(urls);
+
+        // Within a day, on a day boundary, before 1970, before and after all
+        long[] times = { MIDDLE, MIDDLE - DAY / 2, MIDDLE + 7 * DAY + 1234, -DAY - 1, Long.MIN_VALUE + 1, MIDDLE + 31 * DAY };
+
+        for (long time : times) {
+            List<SitemapUrl> expected = new ArrayList<SitemapUrl>();
+            for (SitemapUrl sUrl : urls) {
+                if (sUrl.getLastModified() != null && sUrl.getLastModifiedTime() >= time) {
+                    expected.add(sUrl);
+                }
+            }
+
+            List<String> changed = strings(index.changedSince(time));
+            check(changed.equals(strings(sorted(expected, SitemapUrlIndex.BY_FRESHNESS))), "changed since " + time + ", " + changed.size() + " of " + expected.size());
+        }
+    }
+}
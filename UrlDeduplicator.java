@@ -0,0 +1,192 @@
+package sitemap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The UrlDeduplicator lets each URL through once across all the Sitemaps of
+ * a crawl, for instance the children of a Sitemap Index that list the same
+ * pages. By default a BloomFilter remembers the URLs, and it drops about its
+ * error rate of new URLs as supposed duplicates. At 1% the filter takes about
+ * 11 bits per URL it was sized for, whether they arrive or not, and the
+ * larger and stricter filters it adds beyond that take 12 to 17 bits per URL.
+ * Sized for 10M URLs, that is 14 MB (28 bits per URL at 4M URLs) and about
+ * 600 MB at 300M URLs.
+ * <p>
+ * In exact mode the URLs are remembered as 128-bit hashes in an
+ * OffHeapHashSet instead, which takes 27 to 53 bytes of direct memory per
+ * URL: 8 to 16 GB at 300M URLs, so raise -XX:MaxDirectMemorySize to match.
+ * When the set can't grow any more, the URLs it holds are still dropped
+ * exactly and a BloomFilter takes the new ones. Safe for concurrent use.
+ */
+public class UrlDeduplicator {
+    private long expectedUrls;
+
+    private double fpp;
+
+    /** Remembers the URLs, or only the new ones once the exact set is full */
+    private volatile BloomFilter filter;
+
+    /** Remembers the URLs in exact mode */
+    private OffHeapHashSet exact;
+
+    /** URLs dropped as duplicates */
+    private AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * @param expectedUrls
+     *            URLs to size the filter for, it grows beyond that
+     * @param fpp
+     *            false positive probability of the filter, like 0.01
+     * @param exact
+     *            remember the URLs in an off-heap set instead of the filter
+     */
+    public UrlDeduplicator(long expectedUrls, double fpp, boolean exact) {
+        this(expectedUrls, fpp, exact ? new OffHeapHashSet(expectedUrls, Runtime.getRuntime().availableProcessors() * 4) : null);
+    }
+
+    /** In exact mode with the given set, for tests */
+    UrlDeduplicator(long expectedUrls, double fpp, OffHeapHashSet exact) {
+        this.expectedUrls = expectedUrls;
+        this.fpp = fpp;
+        this.exact = exact;
+        if (exact == null) {
+            filter = new BloomFilter(expectedUrls, fpp);
+        }
+    }
+
+    /** Returns true the first time a URL is seen */
+    public boolean add(String url) {
+
+        long[] h = hash128(url);
+        long h1 = h[0];
+        long h2 = h[1];
+
+        boolean added;
+        BloomFilter filter = this.filter;
+        if (filter == null) {
+            added = exact.add(h1, h2);
+            if (exact.isFull()) {
+                startFilter();
+            }
+        } else if (exact != null && exact.contains(h1, h2)) {
+            added = false;
+        } else {
+            added = filter.put(h1, h2);
+        }
+
+        if (!added) {
+            duplicates.incrementAndGet();
+        }
+        return added;
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /** True once the exact set is full and new URLs go to the filter */
+    public boolean isDegraded() {
+        return exact != null && filter != null;
+    }
+
+    private synchronized void startFilter() {
+        if (filter == null) {
+            System.out.println("Warning: the duplicate URL set is full at " + exact.size() + " URLs, new URLs are checked with a Bloom filter and about "
+                    + fpp * 100 + "% of them will be dropped");
+            filter = new BloomFilter(Math.max(expectedUrls, exact.size()), fpp);
+        }
+    }
+
+    /**
+     * MurmurHash3 x64 128-bit hash of the characters, each char taken as two
+     * little-endian bytes. The BloomFilter derives its bit positions from the
+     * two halves, so they must not be related.
+     */
+    static long[] hash128(String s) {
+
+        final long c1 = 0x87C37B91114253D5L;
+        final long c2 = 0x4CF5AD432745937FL;
+
+        int n = s.length();
+        long h1 = 0;
+        long h2 = 0;
+
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            long k1 = s.charAt(i) | (long) s.charAt(i + 1) << 16 | (long) s.charAt(i + 2) << 32 | (long) s.charAt(i + 3) << 48;
+            long k2 = s.charAt(i + 4) | (long) s.charAt(i + 5) << 16 | (long) s.charAt(i + 6) << 32 | (long) s.charAt(i + 7) << 48;
+
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52DCE729;
+
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495AB5;
+        }
+
+        // The last 0 to 7 chars, a zero k leaves the hash unchanged
+        long k1 = 0;
+        long k2 = 0;
+        for (int j = i; j < n; j++) {
+            if (j - i < 4) {
+                k1 |= (long) s.charAt(j) << (16 * (j - i));
+            } else {
+                k2 |= (long) s.charAt(j) << (16 * (j - i - 4));
+            }
+        }
+        k2 *= c2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= c1;
+        h2 ^= k2;
+        k1 *= c1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= c2;
+        h1 ^= k1;
+
+        h1 ^= 2L * n;
+        h2 ^= 2L * n;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        return new long[] { h1, h2 };
+    }
+
+    /** 64-bit hash of the characters, FNV-1a with a final avalanche */
+    static long hash(String s, long seed) {
+
+        long h = 0xCBF29CE484222325L ^ seed;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+
+        return fmix64(h);
+    }
+
+    /** The final avalanche of MurmurHash3 */
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public String toString() {
+        return "duplicates=" + duplicates.get() + (filter == null ? "" : ",filter=[" + filter + "]") + (exact == null ? "" : ",exact=[" + exact + "]");
+    }
+}
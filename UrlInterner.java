@@ -0,0 +1,64 @@
+package sitemap;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates URLs relative to a cached URL of their site, so the URLs of one
+ * site share the protocol, host and authority Strings instead of each URL
+ * holding its own copies
+ */
+class UrlInterner {
+    /** Crude bound on the number of sites we remember */
+    private static final int MAX_SITES = 1000;
+
+    private static ConcurrentHashMap<String, URL> sites = new ConcurrentHashMap<String, URL>();
+
+    /** Same as new URL(spec) */
+    static URL newUrl(String spec) throws MalformedURLException {
+
+        if (spec == null) {
+            throw new MalformedURLException("null");
+        }
+
+        int scheme = spec.indexOf("://");
+        if (scheme > 0 && isScheme(spec, scheme)) {
+
+            // Find where the authority ends
+            int end = scheme + 3;
+            while (end < spec.length() && spec.charAt(end) != '/' && spec.charAt(end) != '?' && spec.charAt(end) != '#') {
+                end++;
+            }
+
+            // Only plain absolute paths can be resolved against the site,
+            // a path starting with "//" would be read as an authority
+            if (end > scheme + 3 && end < spec.length() && spec.charAt(end) == '/' && !spec.startsWith("//", end)) {
+                String site = spec.substring(0, end);
+
+                URL context = sites.get(site);
+                if (context == null) {
+                    context = new URL(site + "/");
+                    if (sites.size() >= MAX_SITES) {
+                        sites.clear();
+                    }
+                    sites.put(site, context);
+                }
+
+                return new URL(context, spec.substring(end));
+            }
+        }
+
+        return new URL(spec);
+    }
+
+    private static boolean isScheme(String spec, int end) {
+        for (int i = 0; i < end; i++) {
+            char c = spec.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
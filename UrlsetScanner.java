@@ -0,0 +1,634 @@
+package sitemap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.List;
+
+import sitemap.SitemapUrl.Field;
+
+/**
+ * The UrlsetScanner reads the entries of a machine-generated urlset directly
+ * from its UTF-8 bytes, without building a DOM. It only understands the plain
+ * Sitemap structure and gives up on anything else (DOCTYPEs, other encodings,
+ * namespace prefixes on Sitemap elements, markup inside values, ...) so the
+ * caller can fall back to the XML parser.
+ */
+class UrlsetScanner {
+
+    /** A <url> entry as written in the document, values are not converted */
+    static class Entry {
+        String loc;
+        String lastMod;
+        String changeFreq;
+        String priority;
+    }
+
+    private static final byte[] URLSET = bytes("urlset");
+    private static final byte[] URL = bytes("url");
+    private static final byte[] LOC = bytes("loc");
+    private static final byte[] LASTMOD = bytes("lastmod");
+    private static final byte[] CHANGEFREQ = bytes("changefreq");
+    private static final byte[] PRIORITY = bytes("priority");
+    private static final byte[] XML_DECL = bytes("<?xml");
+    private static final byte[] COMMENT = bytes("<!--");
+    private static final byte[] COMMENT_END = bytes("-->");
+    private static final byte[] PI_END = bytes("?>");
+    private static final byte[] CDATA = bytes("<![CDATA[");
+    private static final byte[] CDATA_END = bytes("]]>");
+    private static final byte[] ENCODING = bytes("encoding");
+    private static final byte[] URL_END = bytes("</url>");
+
+    private ByteBuffer buf;
+
+    /** Optional fields we read, the others are skipped like unknown elements */
+    private boolean lastMod;
+    private boolean changeFreq;
+    private boolean priority;
+
+    /** Decoded bytes of the value being read */
+    private byte[] text = new byte[256];
+
+    private int textLength;
+
+    public UrlsetScanner(ByteBuffer buf) {
+        this(buf, EnumSet.allOf(Field.class));
+    }
+
+    public UrlsetScanner(ByteBuffer buf, EnumSet<Field> fields) {
+        this.buf = buf;
+        lastMod = fields.contains(Field.LAST_MODIFIED);
+        changeFreq = fields.contains(Field.CHANGE_FREQUENCY);
+        priority = fields.contains(Field.PRIORITY);
+    }
+
+    /**
+     * Check the prolog and return the offset right after the <urlset> start
+     * tag, or -1 if this isn't a document the scanner can handle
+     */
+    public int findUrlset() {
+
+        int pos = buf.position();
+        int end = buf.limit();
+
+        if (end - pos >= 3 && buf.get(pos) == (byte) 0xEF && buf.get(pos + 1) == (byte) 0xBB && buf.get(pos + 2) == (byte) 0xBF) {
+            pos += 3;
+        }
+
+        if (startsWith(pos, XML_DECL)) {
+            int declEnd = indexOf(PI_END, pos, end);
+            if (declEnd < 0 || !isUtf8Declaration(pos, declEnd)) {
+                return -1;
+            }
+            pos = declEnd + PI_END.length;
+        }
+
+        // Comments and processing instructions such as xml-stylesheet
+        while (true) {
+            pos = skipWhitespace(pos, end);
+            if (startsWith(pos, COMMENT)) {
+                pos = indexOf(COMMENT_END, pos, end);
+                if (pos < 0) {
+                    return -1;
+                }
+                pos += COMMENT_END.length;
+            } else if (pos + 1 < end && buf.get(pos) == '<' && buf.get(pos + 1) == '?') {
+                pos = indexOf(PI_END, pos, end);
+                if (pos < 0) {
+                    return -1;
+                }
+                pos += PI_END.length;
+            } else {
+                break;
+            }
+        }
+
+        if (!isStartTag(pos, URLSET, end)) {
+            return -1;
+        }
+
+        int tagEnd = findTagEnd(pos, end);
+        if (tagEnd < 0 || buf.get(tagEnd - 1) == '/') {
+            return -1;
+        }
+
+        return tagEnd + 1;
+    }
+
+    /**
+     * Read the <url> entries between from and to, which must not cut through
+     * an entry. Returns false if anything unexpected was found. The range that
+     * ends the buffer must end with </urlset>, so a truncated download isn't
+     * taken for a complete Sitemap.
+     */
+    public boolean scan(int from, int to, List<Entry> entries) {
+        return scan(from, to, entries, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like scan(from, to, entries), but once entries holds limit entries the
+     * rest are only checked for their end tags, not read.
+     */
+    public boolean scan(int from, int to, List<Entry> entries, int limit) {
+
+        int pos = from;
+        boolean last = (to == buf.limit());
+
+        while (true) {
+            pos = skipWhitespace(pos, to);
+            if (pos >= to) {
+                return !last;
+            }
+
+            if (buf.get(pos) != '<') {
+                return false;
+            }
+
+            if (isStartTag(pos, URL, to) && entries.size() >= limit) {
+                int tagEnd = findTagEnd(pos, to);
+                if (tagEnd < 0 || buf.get(tagEnd - 1) == '/') {
+                    return false;
+                }
+                pos = skipElement(tagEnd + 1, to, pos + 1, pos + 1 + URL.length);
+                if (pos < 0) {
+                    return false;
+                }
+            } else if (isStartTag(pos, URL, to)) {
+                Entry entry = new Entry();
+                pos = scanEntry(pos, to, entry);
+                if (pos < 0) {
+                    return false;
+                }
+                entries.add(entry);
+            } else if (startsWith(pos, COMMENT)) {
+                pos = indexOf(COMMENT_END, pos, to);
+                if (pos < 0) {
+                    return false;
+                }
+                pos += COMMENT_END.length;
+            } else if (isEndTag(pos, URLSET, to)) {
+                // Only whitespace may follow the end of the document
+                pos = afterTag(pos, to);
+                return last && pos >= 0 && skipWhitespace(pos, to) >= to;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Split the entries after from into about the given number of parts, cut
+     * right after a </url>. Returns the boundaries, starting with from and
+     * ending with the buffer's limit.
+     */
+    public int[] split(int from, int parts) {
+
+        int end = buf.limit();
+        int[] bounds = new int[parts + 1];
+        int n = 0;
+        bounds[n++] = from;
+
+        for (int k = 1; k < parts; k++) {
+            int target = from + (int) ((long) (end - from) * k / parts);
+            if (target <= bounds[n - 1]) {
+                continue;
+            }
+
+            int cut = indexOf(URL_END, target, end);
+            if (cut < 0) {
+                break;
+            }
+            cut += URL_END.length;
+            if (cut >= end) {
+                break;
+            }
+            bounds[n++] = cut;
+        }
+
+        bounds[n++] = end;
+
+        int[] result = new int[n];
+        System.arraycopy(bounds, 0, result, 0, n);
+        return result;
+    }
+
+    /** Read one <url> element, returns the offset after it or -1 */
+    private int scanEntry(int pos, int to, Entry entry) {
+
+        int tagEnd = findTagEnd(pos, to);
+        if (tagEnd < 0 || buf.get(tagEnd - 1) == '/') {
+            return -1;
+        }
+        pos = tagEnd + 1;
+
+        while (true) {
+            pos = skipWhitespace(pos, to);
+            if (pos >= to || buf.get(pos) != '<') {
+                return -1;
+            }
+
+            if (isEndTag(pos, URL, to)) {
+                return afterTag(pos, to);
+            }
+
+            if (startsWith(pos, COMMENT)) {
+                pos = indexOf(COMMENT_END, pos, to);
+                if (pos < 0) {
+                    return -1;
+                }
+                pos += COMMENT_END.length;
+                continue;
+            }
+
+            // Child element
+            int nameStart = pos + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < to && !isWhitespace(buf.get(nameEnd)) && buf.get(nameEnd) != '>' && buf.get(nameEnd) != '/') {
+                nameEnd++;
+            }
+            if (nameEnd == nameStart || buf.get(nameStart) == '/' || buf.get(nameStart) == '!' || buf.get(nameStart) == '?') {
+                return -1;
+            }
+
+            tagEnd = findTagEnd(pos, to);
+            if (tagEnd < 0) {
+                return -1;
+            }
+            boolean empty = buf.get(tagEnd - 1) == '/';
+            pos = tagEnd + 1;
+
+            if (equals(nameStart, nameEnd, LOC)) {
+                pos = empty ? pos : readValue(pos, to, LOC);
+                if (entry.loc == null && pos >= 0) {
+                    entry.loc = value(empty);
+                }
+            } else if (lastMod && equals(nameStart, nameEnd, LASTMOD)) {
+                pos = empty ? pos : readValue(pos, to, LASTMOD);
+                if (entry.lastMod == null && pos >= 0) {
+                    entry.lastMod = value(empty);
+                }
+            } else if (changeFreq && equals(nameStart, nameEnd, CHANGEFREQ)) {
+                pos = empty ? pos : readValue(pos, to, CHANGEFREQ);
+                if (entry.changeFreq == null && pos >= 0) {
+                    entry.changeFreq = value(empty);
+                }
+            } else if (priority && equals(nameStart, nameEnd, PRIORITY)) {
+                pos = empty ? pos : readValue(pos, to, PRIORITY);
+                if (entry.priority == null && pos >= 0) {
+                    entry.priority = value(empty);
+                }
+            } else if (!empty) {
+                // Extension such as <image:image> or a field we don't want,
+                // skip to its end tag
+                pos = skipElement(pos, to, nameStart, nameEnd);
+            }
+
+            if (pos < 0) {
+                return -1;
+            }
+        }
+    }
+
+    /** The trimmed value just read, null if it was empty like the DOM's */
+    private String value(boolean empty) {
+
+        if (empty || textLength == 0) {
+            return null;
+        }
+
+        int start = 0;
+        int end = textLength;
+        while (start < end && isWhitespace(text[start])) {
+            start++;
+        }
+        while (end > start && isWhitespace(text[end - 1])) {
+            end--;
+        }
+
+        return new String(text, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode the text content of an element into the text buffer, resolving
+     * entities and CDATA sections. Returns the offset after the end tag.
+     */
+    private int readValue(int pos, int to, byte[] name) {
+
+        textLength = 0;
+
+        while (pos < to) {
+            byte b = buf.get(pos);
+
+            if (b == '<') {
+                if (startsWith(pos, CDATA)) {
+                    int cdataEnd = indexOf(CDATA_END, pos, to);
+                    if (cdataEnd < 0) {
+                        return -1;
+                    }
+                    for (int i = pos + CDATA.length; i < cdataEnd; i++) {
+                        append(buf.get(i));
+                    }
+                    pos = cdataEnd + CDATA_END.length;
+                } else if (isEndTag(pos, name, to)) {
+                    return afterTag(pos, to);
+                } else {
+                    // Markup inside a value
+                    return -1;
+                }
+            } else if (b == '&') {
+                pos = readEntity(pos, to);
+                if (pos < 0) {
+                    return -1;
+                }
+            } else {
+                append(b);
+                pos++;
+            }
+        }
+
+        return -1;
+    }
+
+    /** Decode the predefined entities and character references */
+    private int readEntity(int pos, int to) {
+
+        int semicolon = pos + 1;
+        while (semicolon < to && semicolon - pos <= 10 && buf.get(semicolon) != ';') {
+            semicolon++;
+        }
+        if (semicolon >= to || buf.get(semicolon) != ';') {
+            return -1;
+        }
+
+        int start = pos + 1;
+        int length = semicolon - start;
+
+        if (length == 3 && buf.get(start) == 'a' && buf.get(start + 1) == 'm' && buf.get(start + 2) == 'p') {
+            append((byte) '&');
+        } else if (length == 2 && buf.get(start) == 'l' && buf.get(start + 1) == 't') {
+            append((byte) '<');
+        } else if (length == 2 && buf.get(start) == 'g' && buf.get(start + 1) == 't') {
+            append((byte) '>');
+        } else if (length == 4 && buf.get(start) == 'q' && buf.get(start + 1) == 'u' && buf.get(start + 2) == 'o' && buf.get(start + 3) == 't') {
+            append((byte) '"');
+        } else if (length == 4 && buf.get(start) == 'a' && buf.get(start + 1) == 'p' && buf.get(start + 2) == 'o' && buf.get(start + 3) == 's') {
+            append((byte) '\'');
+        } else if (length >= 2 && buf.get(start) == '#') {
+            int codePoint = 0;
+            int radix = 10;
+            int i = start + 1;
+            if (buf.get(i) == 'x' || buf.get(i) == 'X') {
+                radix = 16;
+                i++;
+            }
+            if (i == semicolon) {
+                return -1;
+            }
+            for (; i < semicolon; i++) {
+                int digit = Character.digit((char) buf.get(i), radix);
+                if (digit < 0) {
+                    return -1;
+                }
+                codePoint = codePoint * radix + digit;
+                if (codePoint > Character.MAX_CODE_POINT) {
+                    return -1;
+                }
+            }
+            if (!isXmlChar(codePoint)) {
+                return -1;
+            }
+            byte[] utf8 = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+            for (byte b : utf8) {
+                append(b);
+            }
+        } else {
+            // Entities from a DTD need the real parser
+            return -1;
+        }
+
+        return semicolon + 1;
+    }
+
+    /** The Char production of XML 1.0, &#0; and the like are errors */
+    private static boolean isXmlChar(int c) {
+        return c == 0x9 || c == 0xA || c == 0xD || (c >= 0x20 && c <= 0xD7FF) || (c >= 0xE000 && c <= 0xFFFD) || (c >= 0x10000 && c <= 0x10FFFF);
+    }
+
+    /**
+     * Skip an element we don't care about, including its children. An
+     * element of the same name inside it, or a missing end tag, is left to
+     * the XML parser.
+     */
+    private int skipElement(int pos, int to, int nameStart, int nameEnd) {
+
+        int nameLength = nameEnd - nameStart;
+
+        while (pos < to) {
+            int lt = indexOf((byte) '<', pos, to);
+            if (lt < 0) {
+                return -1;
+            }
+
+            // CDATA sections and comments could hide the end tag
+            if (startsWith(lt, CDATA)) {
+                pos = indexOf(CDATA_END, lt, to);
+                if (pos < 0) {
+                    return -1;
+                }
+                pos += CDATA_END.length;
+                continue;
+            }
+            if (startsWith(lt, COMMENT)) {
+                pos = indexOf(COMMENT_END, lt, to);
+                if (pos < 0) {
+                    return -1;
+                }
+                pos += COMMENT_END.length;
+                continue;
+            }
+
+            if (lt + 1 < to && buf.get(lt + 1) == '/') {
+                if (isName(lt + 2, to, nameStart, nameLength) && buf.get(lt + 2 + nameLength) != '/') {
+                    return afterTag(lt, to);
+                }
+            } else if (isName(lt + 1, to, nameStart, nameLength)) {
+                return -1;
+            }
+
+            pos = lt + 1;
+        }
+
+        return -1;
+    }
+
+    /** Is the name at nameStart at pos, followed by the end of a name? */
+    private boolean isName(int pos, int to, int nameStart, int nameLength) {
+
+        if (pos + nameLength >= to) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (buf.get(pos + i) != buf.get(nameStart + i)) {
+                return false;
+            }
+        }
+
+        byte b = buf.get(pos + nameLength);
+        return b == '>' || b == '/' || isWhitespace(b);
+    }
+
+    /** Is there a start tag <name> at pos, not just a longer name? */
+    private boolean isStartTag(int pos, byte[] name, int to) {
+
+        if (pos + name.length + 1 >= to || buf.get(pos) != '<' || !startsWith(pos, name, 1)) {
+            return false;
+        }
+
+        byte b = buf.get(pos + 1 + name.length);
+        return b == '>' || b == '/' || isWhitespace(b);
+    }
+
+    private boolean isEndTag(int pos, byte[] name, int to) {
+
+        if (pos + name.length + 2 >= to || buf.get(pos) != '<' || buf.get(pos + 1) != '/' || !startsWith(pos, name, 2)) {
+            return false;
+        }
+
+        byte b = buf.get(pos + 2 + name.length);
+        return b == '>' || isWhitespace(b);
+    }
+
+    /** Offset of the '>' that closes the tag starting at pos, skipping quoted attribute values */
+    private int findTagEnd(int pos, int to) {
+
+        byte quote = 0;
+        for (int i = pos + 1; i < to; i++) {
+            byte b = buf.get(i);
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i;
+            } else if (b == '<') {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /** Offset after the tag starting at pos, -1 if it doesn't end */
+    private int afterTag(int pos, int to) {
+        int end = findTagEnd(pos, to);
+        return (end < 0) ? -1 : end + 1;
+    }
+
+    /** Only UTF-8 and its ASCII subset can be read as bytes */
+    private boolean isUtf8Declaration(int pos, int end) {
+
+        int i = indexOf(ENCODING, pos, end);
+        if (i < 0) {
+            return true;
+        }
+
+        i = skipWhitespace(i + ENCODING.length, end);
+        if (i >= end || buf.get(i) != '=') {
+            return false;
+        }
+        i = skipWhitespace(i + 1, end);
+        if (i >= end || (buf.get(i) != '"' && buf.get(i) != '\'')) {
+            return false;
+        }
+
+        byte quote = buf.get(i);
+        int close = indexOf(quote, i + 1, end);
+        if (close < 0) {
+            return false;
+        }
+
+        String encoding = decode(i + 1, close).toUpperCase();
+        return encoding.equals("UTF-8") || encoding.equals("UTF8") || encoding.equals("US-ASCII") || encoding.equals("ASCII");
+    }
+
+    private void append(byte b) {
+        if (textLength == text.length) {
+            byte[] bigger = new byte[text.length * 2];
+            System.arraycopy(text, 0, bigger, 0, textLength);
+            text = bigger;
+        }
+        text[textLength++] = b;
+    }
+
+    private boolean equals(int start, int end, byte[] name) {
+
+        if (end - start != name.length) {
+            return false;
+        }
+        return startsWith(start, name, 0);
+    }
+
+    private boolean startsWith(int pos, byte[] prefix) {
+        return startsWith(pos, prefix, 0);
+    }
+
+    /** Does the buffer hold prefix at pos + skip? */
+    private boolean startsWith(int pos, byte[] prefix, int skip) {
+
+        pos += skip;
+        if (pos < 0 || pos + prefix.length > buf.limit()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf.get(pos + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(byte[] s, int from, int to) {
+
+        int last = to - s.length;
+        for (int i = from; i <= last; i++) {
+            if (buf.get(i) == s[0] && startsWith(i, s, 0)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int skipWhitespace(int pos, int to) {
+        while (pos < to && isWhitespace(buf.get(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
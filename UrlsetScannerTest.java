@@ -0,0 +1,205 @@
+package sitemap;
+
+import static sitemap.TestSupport.check;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that the UrlsetScanner, alone and split in chunks, reads the same
+ * URLs as the XML parser, and that it rejects what the parser rejects. Past
+ * the 50,000 URL limit it must only read the first 50,000. Run
+ * with java sitemap.UrlsetScannerTest, it exits with an error on the first
+ * failed check.
+ */
+public class UrlsetScannerTest {
+
+    private static final String START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n";
+
+    private static final String END = "</urlset>\n";
+
+    public static void main(String[] args) throws Exception {
+        testParity();
+        testParallelParity();
+        testSplit();
+        testSplitInComment();
+        testTruncated();
+        testInvalidCharacterReference();
+        testUrlLimit();
+        System.out.println("UrlsetScannerTest OK");
+    }
+
+    /** Entries with every optional field, entities, CDATA and comments */
+    private static String entries(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append("  <url>\n");
+            if (i % 7 == 0) {
+                sb.append("    <loc><![CDATA[http://example.com/cdata/").append(i).append("?a=1&b=2]]></loc>\n");
+            } else {
+                sb.append("    <loc>http://example.com/p/").append(i).append("?a=1&amp;b=&#x32;&#50;</loc>\n");
+            }
+            if (i % 2 == 0)
+                sb.append("    <lastmod>2023-0").append(1 + i % 9).append("-1").append(i % 10).append("</lastmod>\n");
+            if (i % 3 == 0)
+                sb.append("    <changefreq>").append(i % 6 == 0 ? "daily" : "weekly").append("</changefreq>\n");
+            if (i % 5 == 0)
+                sb.append("    <priority>0.").append(i % 10).append("</priority>\n");
+            if (i % 11 == 0)
+                sb.append("    <!-- a comment -->\n    <image:image xmlns:image=\"http://www.google.com/schemas/sitemap-image/1.1\"><image:loc>http://example.com/i.png</image:loc></image:image>\n");
+            sb.append("  </url>\n");
+        }
+        return sb.toString();
+    }
+
+    private static void testParity() throws Exception {
+        String doc = START + entries(500) + END;
+        List<String> fast = parse(doc, true, 0);
+        List<String> dom = parse(doc, false, 0);
+        check(dom.size() == 500, "XML parser reads 500 URLs, got " + dom.size());
+        check(fast.equals(dom), "scanner and XML parser read the same URLs");
+    }
+
+    private static void testParallelParity() throws Exception {
+        // Several chunks of at least 512 KB each
+        String doc = START + entries(12000) + END;
+        List<String> parallel = parse(doc, true, 1);
+        List<String> dom = parse(doc, false, 0);
+        check(dom.size() == 12000, "XML parser reads 12000 URLs, got " + dom.size());
+        check(parallel.equals(dom), "chunked scan and XML parser read the same URLs");
+    }
+
+    /** Chunks cut right after a </url> and read the entries in document order */
+    private static void testSplit() throws Exception {
+
+        byte[] doc = (START + entries(300) + END).getBytes(StandardCharsets.UTF_8);
+        UrlsetScanner scanner = new UrlsetScanner(ByteBuffer.wrap(doc));
+        int start = scanner.findUrlset();
+
+        List<UrlsetScanner.Entry> whole = new ArrayList<UrlsetScanner.Entry>();
+        check(scanner.scan(start, doc.length, whole), "whole urlset scans");
+
+        for (int parts = 1; parts <= 64; parts *= 2) {
+            int[] bounds = scanner.split(start, parts);
+            check(bounds[0] == start && bounds[bounds.length - 1] == doc.length, parts + " parts cover the urlset");
+            check(bounds.length - 1 <= parts, parts + " parts at most");
+
+            List<UrlsetScanner.Entry> merged = new ArrayList<UrlsetScanner.Entry>();
+            for (int i = 0; i < bounds.length - 1; i++) {
+                check(bounds[i] < bounds[i + 1], "boundaries increase");
+                if (i > 0) {
+                    String before = new String(doc, bounds[i] - 6, 6, StandardCharsets.UTF_8);
+                    check(before.equals("</url>"), "cut right after </url>, not " + before);
+                }
+                check(scanner.scan(bounds[i], bounds[i + 1], merged), "chunk " + i + " of " + parts + " scans");
+            }
+
+            check(merged.size() == whole.size(), parts + " parts read " + merged.size() + " entries");
+            for (int i = 0; i < whole.size(); i++) {
+                check(merged.get(i).loc.equals(whole.get(i).loc), parts + " parts keep the order at entry " + i);
+            }
+        }
+    }
+
+    /** A cut inside a comment fails the chunk, the XML parser then reads it */
+    private static void testSplitInComment() throws Exception {
+
+        StringBuilder comment = new StringBuilder("<!-- ");
+        for (int i = 0; i < 200000; i++) {
+            comment.append("</url> ");
+        }
+        comment.append("-->\n");
+        String doc = START + entries(6000) + comment + entries(6000) + END;
+
+        List<String> parallel = parse(doc, true, 1);
+        List<String> dom = parse(doc, false, 0);
+        check(dom != null && dom.size() == 6000, "XML parser reads 6000 URLs");
+        check(parallel != null && parallel.equals(dom), "cut inside a comment falls back to the XML parser");
+    }
+
+    private static void testTruncated() throws Exception {
+        String doc = START + entries(20);
+
+        UrlsetScanner scanner = new UrlsetScanner(ByteBuffer.wrap(doc.getBytes(StandardCharsets.UTF_8)));
+        int start = scanner.findUrlset();
+        check(start > 0, "urlset start found");
+        check(!scanner.scan(start, doc.getBytes(StandardCharsets.UTF_8).length, new ArrayList<UrlsetScanner.Entry>()), "scanner rejects a urlset without </urlset>");
+
+        check(parse(doc, true, 0) == null, "truncated urlset fails with the scanner");
+        check(parse(doc, false, 0) == null, "truncated urlset fails with the XML parser");
+
+        // A chunk in the middle may end without </urlset>
+        byte[] whole = (START + entries(20) + END).getBytes(StandardCharsets.UTF_8);
+        scanner = new UrlsetScanner(ByteBuffer.wrap(whole));
+        start = scanner.findUrlset();
+        int[] bounds = scanner.split(start, 4);
+        List<UrlsetScanner.Entry> scanned = new ArrayList<UrlsetScanner.Entry>();
+        for (int i = 0; i < bounds.length - 1; i++) {
+            check(scanner.scan(bounds[i], bounds[i + 1], scanned), "chunk " + i + " scans");
+        }
+        check(scanned.size() == 20, "chunks hold 20 entries, got " + scanned.size());
+    }
+
+    private static void testInvalidCharacterReference() throws Exception {
+        String doc = START + "<url><loc>http://example.com/a&#0;</loc></url>\n" + END;
+
+        UrlsetScanner scanner = new UrlsetScanner(ByteBuffer.wrap(doc.getBytes(StandardCharsets.UTF_8)));
+        int start = scanner.findUrlset();
+        check(!scanner.scan(start, doc.getBytes(StandardCharsets.UTF_8).length, new ArrayList<UrlsetScanner.Entry>()), "scanner rejects &#0;");
+        check(parse(doc, true, 0) == null, "&#0; fails with the scanner");
+        check(parse(doc, false, 0) == null, "&#0; fails with the XML parser");
+    }
+
+    private static void testUrlLimit() throws Exception {
+
+        // Entries past the limit are skipped but still need their end tag
+        byte[] doc = (START + entries(20) + END).getBytes(StandardCharsets.UTF_8);
+        UrlsetScanner scanner = new UrlsetScanner(ByteBuffer.wrap(doc));
+        List<UrlsetScanner.Entry> scanned = new ArrayList<UrlsetScanner.Entry>();
+        check(scanner.scan(scanner.findUrlset(), doc.length, scanned, 5), "scan with a limit");
+        check(scanned.size() == 5, "scanner read 5 entries, got " + scanned.size());
+
+        String cut = START + entries(20).replaceFirst("(?s)(</url>.*?</url>.*?</url>.*?</url>.*?</url>.*?)</url>", "$1") + END;
+        doc = cut.getBytes(StandardCharsets.UTF_8);
+        scanner = new UrlsetScanner(ByteBuffer.wrap(doc));
+        check(!scanner.scan(scanner.findUrlset(), doc.length, new ArrayList<UrlsetScanner.Entry>(), 5), "skipped entry without </url> rejected");
+
+        String big = START + entries(50100) + END;
+        List<String> fast = parse(big, true, 0);
+        List<String> parallel = parse(big, true, 1);
+        List<String> dom = parse(big, false, 0);
+        check(dom.size() == 50000, "XML parser reads 50000 URLs, got " + dom.size());
+        check(fast.equals(dom), "scanner reads the first 50000 URLs");
+        check(parallel.equals(dom), "chunked scan reads the first 50000 URLs");
+    }
+
+    /** Parse the document from a file and return its URLs sorted, or null if it failed */
+    private static List<String> parse(String doc, boolean fastPath, int parallelThreshold) throws Exception {
+
+        File file = File.createTempFile("urlset", ".xml");
+        try {
+            Files.write(file.toPath(), doc.getBytes(StandardCharsets.UTF_8));
+
+            SitemapParser parser = new SitemapParser();
+            parser.setUrlsetFastPath(fastPath);
+            parser.setParallelThreshold(parallelThreshold);
+            parser.processSitemap(file.toURI().toURL());
+
+            List<String> urls = new ArrayList<String>();
+            for (SitemapUrl sUrl : parser.getSitemap().getUrlList()) {
+                urls.add(sUrl.toString());
+            }
+            Collections.sort(urls);
+            return urls;
+        } catch (UnknownFormatException e) {
+            return null;
+        } finally {
+            file.delete();
+        }
+    }
+}